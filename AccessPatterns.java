@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts which file clients open right after which, for each client and
+ * over all clients, to predict the files a client opens next.
+ *
+ * Each file keeps the counts of the files opened after it, at most
+ * MAX_SUCCESSORS of them, the least counted making room for a new one.
+ * Once a file's counts add up to AGING_TOTAL they are halved, so old
+ * habits fade and a changed workflow is soon picked up. Only the most
+ * recently opened files are tracked, MAX_FILES over all clients and
+ * CLIENT_FILES for each client.
+ *
+ * A file is predicted when the share of the opens after the current
+ * file that went to it reaches CONFIDENCE, with a client's own counts
+ * weighing CLIENT_WEIGHT times the global ones.
+ */
+public class AccessPatterns {
+
+	static final int MAX_SUCCESSORS = 8;		//most files counted after each file
+	static final int AGING_TOTAL = 64;			//counts after a file are halved once they add up to this
+	static final int MAX_FILES = 4096;			//most files tracked over all clients
+	static final int CLIENT_FILES = 256;		//most files tracked for each client
+	static final int CLIENT_WEIGHT = 4;			//weight of a client's own counts against the global ones
+	static final double CONFIDENCE = Double.parseDouble(System.getProperty("dfs.prefetch.confidence", "0.3"));	//least share of opens predicted
+	static final int MAX_PREDICTIONS = Integer.getInteger("dfs.prefetch.files", 2);	//most files predicted at once
+
+	// Counts of the files opened after each file, least recently opened first
+	private static class Transitions extends LinkedHashMap<String, HashMap<String, Integer>> {
+		private final int limit;				//most files tracked
+
+		Transitions(int limit) {
+			super(16, 0.75f, true);
+			this.limit = limit;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, HashMap<String, Integer>> eldest) {
+			return size() > limit;
+		}
+
+		/*
+		 * Counts an open of to right after from
+		 */
+		void count(String from, String to) {
+
+			HashMap<String, Integer> successors = computeIfAbsent(from, name -> new HashMap<String, Integer>());
+			if (!successors.containsKey(to) && successors.size() >= MAX_SUCCESSORS) {
+				String least = null;
+				for (Map.Entry<String, Integer> successor : successors.entrySet()) {
+					if (least == null || successor.getValue() < successors.get(least)) {
+						least = successor.getKey();
+					}
+				}
+				successors.remove(least);
+			}
+			successors.merge(to, 1, Integer::sum);
+			if (total(successors) >= AGING_TOTAL) {
+				successors.replaceAll((name, count) -> count / 2);
+				successors.values().removeIf(count -> count == 0);
+			}
+		}
+	}
+
+	private Transitions global = new Transitions(MAX_FILES);						//counts over all clients
+	private HashMap<String, Transitions> clients = new HashMap<String, Transitions>();	//counts of each client
+
+	/**
+	 * Counts that the client opened a file right after another. Returns
+	 * false, counting nothing, if there was no other or it is the same file.
+	 */
+	public synchronized boolean record(String client, String from, String to) {
+
+		if (from == null || from.equals(to)) {
+			return false;
+		}
+		global.count(from, to);
+		clients.computeIfAbsent(client, name -> new Transitions(CLIENT_FILES)).count(from, to);
+		return true;
+	}
+
+	/**
+	 * Returns the files the client is likely to open after the given
+	 * one, the likeliest first
+	 */
+	public synchronized List<String> predict(String client, String from) {
+
+		HashMap<String, Integer> all = global.get(from);
+		Transitions own = clients.get(client);
+		HashMap<String, Integer> mine = own == null ? null : own.get(from);
+		List<String> likely = new ArrayList<String>();
+		if (all == null && mine == null) {
+			return likely;
+		}
+		//either may track successors the other dropped to make room
+		HashSet<String> candidates = new HashSet<String>();
+		if (all != null) {
+			candidates.addAll(all.keySet());
+		}
+		if (mine != null) {
+			candidates.addAll(mine.keySet());
+		}
+		double total = CLIENT_WEIGHT * (mine == null ? 0 : total(mine)) + (all == null ? 0 : total(all));
+		HashMap<String, Double> shares = new HashMap<String, Double>();
+		for (String candidate : candidates) {
+			int count = mine == null ? 0 : mine.getOrDefault(candidate, 0);
+			int globalCount = all == null ? 0 : all.getOrDefault(candidate, 0);
+			double share = (CLIENT_WEIGHT * count + globalCount) / total;
+			if (share >= CONFIDENCE) {
+				shares.put(candidate, share);
+				likely.add(candidate);
+			}
+		}
+		likely.sort((a, b) -> Double.compare(shares.get(b), shares.get(a)));
+		if (likely.size() > MAX_PREDICTIONS) {
+			likely = new ArrayList<String>(likely.subList(0, MAX_PREDICTIONS));
+		}
+		return likely;
+	}
+
+	/**
+	 * Drops a client's own counts, once it left
+	 */
+	public synchronized void forget(String client) {
+
+		clients.remove(client);
+	}
+
+	private static int total(HashMap<String, Integer> successors) {
+
+		int total = 0;
+		for (int count : successors.values()) {
+			total += count;
+		}
+		return total;
+	}
+}
@@ -1,43 +1,466 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Writes data to a file asynchronously.
+ * Writes data to files asynchronously.
  *
- * Is somewhat optimistic that the thread will complete without error.
+ * Writes are queued and performed by a small pool of worker threads.
+ * If a file is written again before its earlier write started, only
+ * the latest data is written, and a file is never written by two
+ * workers at once so writes to it land in order. Each write goes to a
+ * temporary file that is fsynced and then renamed over the file, so a
+ * crash leaves either the old or the new contents. A worker writes up
+ * to a batch of files, then syncs them back to back, renames them, and
+ * syncs each directory once for the whole batch. Each file still takes
+ * its own data sync, only the directory syncs are shared.
+ *
+ * A write that fails stays queued and is retried after a delay that
+ * doubles with each failure, unless newer data for the file replaced
+ * it meanwhile. Its done callback only runs once the data is on disk,
+ * so the data stays in memory and in the journal until then. Writes
+ * still failing when the writer is closed are given up, and are left
+ * in the journal for the next start to replay.
+ *
+ * A file replaced without the writer, by a move or through a mapping,
+ * is replaced through discard, which keeps the writer's older data for
+ * the file from landing over the replacement.
+ *
+ * With a journal, write returns only once the data is in the journal,
+ * so it survives a crash before the file is written, and the file
+ * writes are checkpoints releasing the journal's records.
  */
-public class AsyncFileWriter extends Thread {
-	
-    // The file to write to
-	private File file;
-    // the data to write
-	private byte[] data;
-    
-    /**
-     * Constructs the thread to write the specified data to the specified file.
+public class AsyncFileWriter {
+
+	static final int BATCH_SIZE = 16;			//most files a worker writes before syncing
+	static final long RETRY_DELAY = 1000;		//delay before a failed write is first retried, in milliseconds
+	static final long MAX_RETRY_DELAY = 30000;	//longest delay between retries of a failed write, in milliseconds
+
+    // A write waiting to be performed
+	private static class PendingWrite {
+		File file;					//the file to write to
+		byte[] data;				//the data to write
+		Runnable done;				//called once the data is on disk or superseded
+		int failures;				//attempts that failed so far
+		long retryAt;				//System.nanoTime() before which a failed write is not retried
+	}
+
+    /**
+     * Replaces a file without the writer, see discard
+     */
+	public interface Replacement {
+		void replace() throws IOException;
+	}
+
+    // Latest pending write of each file, oldest first
+	private LinkedHashMap<File, PendingWrite> pending;
+    // Files a worker is currently writing
+	private HashSet<File> writing;
+    // Most files that may have a pending write before write() blocks
+	private int capacity;
+    // Whether close() was called
+	private boolean closed;
+    // The worker threads
+	private List<Thread> workers;
+    // Time taken to write and sync each batch
+	private LatencyHistogram writeTimes = new LatencyHistogram();
+    // Attempts to write a file that failed
+	private LongAdder failures = new LongAdder();
+    // Writes given up when the writer was closed
+	private LongAdder abandoned = new LongAdder();
+    // Journal the writes are logged to first, null if they are not
+	private Journal journal;
+
+    /**
+     * Constructs the writer and starts its worker threads.
+     *
+     * @param workerCount - the number of worker threads
+     * @param capacity - the most files with a pending write before callers block
+     */
+	public AsyncFileWriter(int workerCount, int capacity) {
+		this(workerCount, capacity, null);
+	}
+
+    /**
+     * Constructs the writer, logging every write to the given journal 
+     * before it is queued, and starts its worker threads.
+     */
+	public AsyncFileWriter(int workerCount, int capacity, Journal journal) {
+		this.capacity = capacity;
+		this.journal = journal;
+		pending = new LinkedHashMap<File, PendingWrite>();
+		writing = new HashSet<File>();
+		workers = new ArrayList<Thread>();
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(this::work, "file-writer-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+    /**
+     * Queues the specified data to be written to the specified file,
+     * replacing any write to the file that has not started yet.
+     * Blocks while the queue is full.
      *
      * @param file - the file to write to
      * @param data - the data to write to the given file.
+     * @param done - called once the data is on disk, or once newer data
+     *               for the file replaced it in the queue
+     * @throws IOException if the data could not be journaled, the writer
+     *               is closed or the caller was interrupted while the queue
+     *               was full, the data is then not written either
+     */
+	public void write(File file, byte[] data, Runnable done) throws IOException {
+		PendingWrite write = new PendingWrite();
+		write.file = file;
+		write.data = data;
+		write.done = done;
+		if (journal != null) {
+			long segment = journal.append(file, data);
+			write.done = () -> {
+				journal.release(segment);
+				done.run();
+			};
+		}
+		PendingWrite superseded;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("writer is closed");
+			}
+			while (pending.size() >= capacity && !pending.containsKey(file)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting to queue write");
+				}
+			}
+			superseded = pending.remove(file);
+			pending.put(file, write);
+			notifyAll();
+		}
+		if (superseded != null) {
+			superseded.done.run();
+		}
+	}
+
+    /**
+     * Replaces the given file without the writer. A queued write of the
+     * file is dropped and one in progress is waited for, so older data
+     * does not land over the replacement, and the file is not written
+     * again until the replacement is done. The journal is then told, so
+     * a replay does not write older contents over it either. The dropped
+     * write counts as superseded once the file is replaced, and is 
+     * queued again if the replacement fails.
      */
-	public AsyncFileWriter(File file, byte[] data) {
-		this.file = file;
-		this.data = data;
+	public void discard(File file, Replacement replacement) throws IOException {
+		PendingWrite dropped;
+		synchronized (this) {
+			dropped = pending.remove(file);
+			boolean interrupted = false;
+			while (writing.contains(file)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;		//the write was dropped, the replacement has to follow
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			writing.add(file);
+		}
+		boolean replaced = false;
+		try {
+			replacement.replace();
+			replaced = true;
+			if (journal != null) {
+				journal.discard(file);
+			}
+		} finally {
+			PendingWrite superseded = dropped;
+			synchronized (this) {
+				writing.remove(file);
+				if (!replaced && dropped != null && !pending.containsKey(file)) {
+					pending.put(file, dropped);
+					superseded = null;
+				}
+				notifyAll();
+			}
+			if (superseded != null) {
+				superseded.done.run();
+			}
+		}
 	}
-	
+
+    /**
+     * Waits until every write queued so far is on disk, or failed and
+     * waits to be retried.
+     */
+	public synchronized void flush() throws InterruptedException {
+		while (!writing.isEmpty() || hasUntried()) {
+			wait();
+		}
+	}
+
     /*
-     * Performs the actual write operation.
-     *
-     * @see Thread#run()
+     * Whether a queued write has not been attempted yet
+     */
+	private boolean hasUntried() {
+		for (PendingWrite write : pending.values()) {
+			if (write.failures == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+    /**
+     * Stops accepting writes, waits for queued writes to reach disk and
+     * stops the worker threads.
+     */
+	public void close() throws InterruptedException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+    /**
+     * Getter for the time taken to write and sync each batch of files
      */
-	@Override
-	public void run() {
+	public LatencyHistogram getWriteTimes() {
+		return writeTimes;
+	}
+
+    /**
+     * Getter for the journal the writes are logged to, null if there is none
+     */
+	public Journal getJournal() {
+		return journal;
+	}
+
+    /**
+     * Getter for the number of attempts to write a file that failed
+     */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+    /**
+     * Getter for the number of failed writes waiting to be retried
+     */
+	public synchronized int getRetrying() {
+		int retrying = 0;
+		for (PendingWrite write : pending.values()) {
+			if (write.failures > 0) {
+				retrying++;
+			}
+		}
+		return retrying;
+	}
+
+    /**
+     * Getter for the number of writes given up when the writer was closed
+     */
+	public long getAbandoned() {
+		return abandoned.sum();
+	}
+
+    /*
+     * Worker loop, takes batches of writes until the writer is closed
+     * and drained.
+     */
+	private void work() {
+		while (true) {
+			List<PendingWrite> batch = new ArrayList<PendingWrite>();
+			synchronized (this) {
+				while (!takeBatch(batch)) {
+					if (closed && pending.isEmpty()) {
+						return;
+					}
+					try {
+						wait(nextRetryDelay());
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+				notifyAll();	//room in the queue
+			}
+			long start = System.nanoTime();
+			List<PendingWrite> failed = new ArrayList<PendingWrite>(batch);
+			try {
+				failed = writeBatch(batch);
+			} finally {
+				writeTimes.recordSince(start);
+				//done only for the writes that reached disk, and those newer data replaced
+				List<PendingWrite> finished = new ArrayList<PendingWrite>(batch);
+				finished.removeAll(failed);
+				synchronized (this) {
+					for (PendingWrite write : batch) {
+						writing.remove(write.file);
+					}
+					for (PendingWrite write : failed) {
+						if (pending.containsKey(write.file)) {
+							finished.add(write);		//superseded while it was being written
+						} else if (closed) {
+							abandoned.increment();
+							System.err.println("Gave up writing " + write.file 
+								+ (journal != null ? ", it is left in the journal" : ""));
+						} else {
+							write.failures++;
+							long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(write.failures - 1, 16));
+							write.retryAt = System.nanoTime() + delay * 1000000;
+							pending.put(write.file, write);
+						}
+					}
+					notifyAll();
+				}
+				for (PendingWrite write : finished) {
+					write.done.run();
+				}
+			}
+		}
+	}
+
+    /*
+     * Returns how long until the next failed write may be retried, in
+     * milliseconds, 0 to wait for a new write if none is waiting
+     */
+	private long nextRetryDelay() {
+		long next = 0;
+		long now = System.nanoTime();
+		for (PendingWrite write : pending.values()) {
+			if (write.failures > 0) {
+				long delay = Math.max(1, (write.retryAt - now) / 1000000);
+				next = next == 0 ? delay : Math.min(next, delay);
+			}
+		}
+		return next;
+	}
+
+    /*
+     * Moves up to a batch of writes of files no other worker is writing
+     * into the given list. Returns whether any were taken.
+     */
+	private boolean takeBatch(List<PendingWrite> batch) {
+		Iterator<PendingWrite> it = pending.values().iterator();
+		while (it.hasNext() && batch.size() < BATCH_SIZE) {
+			PendingWrite write = it.next();
+			if (write.failures > 0 && write.retryAt - System.nanoTime() > 0 && !closed) {
+				continue;		//failed and not due for a retry yet
+			}
+			if (writing.add(write.file)) {
+				it.remove();
+				batch.add(write);
+			}
+		}
+		return !batch.isEmpty();
+	}
+
+    /*
+     * Writes each file of a batch to a temporary file, then syncs them,
+     * renames them over their files and syncs the directories holding 
+     * them. Returns the writes that failed.
+     */
+	private List<PendingWrite> writeBatch(List<PendingWrite> batch) {
+		List<PendingWrite> failed = new ArrayList<PendingWrite>();
+		List<PendingWrite> unsynced = new ArrayList<PendingWrite>();
+		List<FileOutputStream> outs = new ArrayList<FileOutputStream>();
+		for (PendingWrite write : batch) {
+			File temp = temp(write);
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(temp);
+				out.write(write.data);
+				unsynced.add(write);
+				outs.add(out);
+			} catch (IOException e) {
+				failed(write, failed, e);
+				closeQuietly(out);
+				temp.delete();
+			}
+		}
+		// Sync the data once every file is written, so the syncs run back to back
+		List<PendingWrite> written = new ArrayList<PendingWrite>();
+		List<File> temps = new ArrayList<File>();
+		for (int i = 0; i < unsynced.size(); i++) {
+			PendingWrite write = unsynced.get(i);
+			try (FileOutputStream out = outs.get(i)) {
+				out.getChannel().force(true);
+				written.add(write);
+				temps.add(temp(write));
+			} catch (IOException e) {
+				failed(write, failed, e);
+				temp(write).delete();
+			}
+		}
+		HashSet<File> directories = new HashSet<File>();
+		for (int i = 0; i < written.size(); i++) {
+			File file = written.get(i).file;
+			try {
+				Files.move(temps.get(i).toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				directories.add(file.getAbsoluteFile().getParentFile());
+			} catch (IOException e) {
+				failed(written.get(i), failed, e);
+				temps.get(i).delete();
+			}
+		}
+		// Make the renames durable, once per directory for the whole batch
+		for (File directory : directories) {
+			try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (IOException e) {
+				// Not every platform can sync a directory
+			}
+		}
+		return failed;
+	}
+
+    /*
+     * Temporary file a write goes to before it is renamed over its file
+     */
+	private static File temp(PendingWrite write) {
+		return new File(write.file.getParentFile(), "." + write.file.getName() + ".write");
+	}
+
+    /*
+     * Counts and reports a write that failed, to be retried
+     */
+	private void failed(PendingWrite write, List<PendingWrite> failed, IOException e) {
+		System.err.println("Could not write cached file to persistant storage, will retry: " + e);
+		failures.increment();
+		failed.add(write);
+	}
+
+	private static void closeQuietly(FileOutputStream out) {
+		if (out == null) {
+			return;
+		}
 		try {
-			FileOutputStream writer = new FileOutputStream(file);
-			writer.write(data);
+			out.close();
 		} catch (IOException e) {
-			System.err.println("Could not write cached file to persistant storage!");
-			e.printStackTrace();
+			// Nothing more to do
 		}
 	}
 }
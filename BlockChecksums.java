@@ -0,0 +1,252 @@
+/*
+*	@author Tiana Greisel and Garrett Singletary
+*	@title	CSS434 - Program 4 Distributed File System
+*	
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * rsync style block checksums. The server computes a signature of each
+ * cached file, the client diffs its modified copy against the signature 
+ * and the server patches its copy with the resulting delta.
+ */
+public class BlockChecksums {
+
+	static final int MIN_BLOCK_SIZE = 1024;			//smallest block of a signature
+	static final int MAX_BLOCK_SIZE = 64 * 1024;	//largest block of a signature
+
+	//not instantiable
+	private BlockChecksums() {
+	}
+
+	/**
+	 * Computes the block signature of a file's contents
+	 */
+	public static BlockSignature signature(ByteBuffer data) {
+
+		//block size grows with the square root of the file size as in rsync
+		int length = data.remaining();
+		int blockSize = (int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, Math.sqrt(length)));
+		int blocks = (length + blockSize - 1) / blockSize;
+		int[] weak = new int[blocks];
+		byte[][] strong = new byte[blocks][];
+		for (int i = 0; i < blocks; i++) {
+			int offset = i * blockSize;
+			int size = Math.min(blockSize, length - offset);
+			weak[i] = weak(data, offset, size);
+			strong[i] = strong(data, offset, size);
+		}
+		return new BlockSignature(blockSize, length, strong(data, 0, length), weak, strong);
+	}
+
+	/**
+	 * Computes the delta that turns the file the signature was computed 
+	 * over into the given contents
+	 */
+	public static FileDelta diff(BlockSignature signature, byte[] data) {
+
+		int blockSize = signature.getBlockSize();
+		int[] weak = signature.getWeak();
+		byte[][] strong = signature.getStrong();
+
+		//index the full size blocks by their rolling checksum
+		HashMap<Integer, List<Integer>> index = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < weak.length; i++) {
+			if ((long) i * blockSize + blockSize <= signature.getLength()) {
+				index.computeIfAbsent(weak[i], key -> new ArrayList<Integer>(1)).add(i);
+			}
+		}
+
+		ArrayList<Integer> ops = new ArrayList<Integer>();
+		ArrayList<byte[]> literals = new ArrayList<byte[]>();
+		int literalStart = 0;		//start of the literal run not yet emitted
+		int position = 0;			//start of the rolling window
+		int a = 0, b = 0;			//rolling checksum parts of the current window
+		boolean rolling = false;	//whether a and b hold the current window's checksum
+		while (position + blockSize <= data.length) {
+			if (!rolling) {
+				int sum = weak(data, position, blockSize);
+				a = sum & 0xffff;
+				b = sum >>> 16;
+				rolling = true;
+			}
+			int block = match(index, strong, (b << 16) | a, data, position, blockSize);
+			if (block >= 0) {
+				addLiteral(ops, literals, data, literalStart, position);
+				ops.add(block);
+				position += blockSize;
+				literalStart = position;
+				rolling = false;
+				continue;
+			}
+			//slide the window one byte
+			if (position + blockSize < data.length) {
+				int out = data[position] & 0xff;
+				int in = data[position + blockSize] & 0xff;
+				a = (a - out + in) & 0xffff;
+				b = (b - blockSize * out + a) & 0xffff;
+			}
+			position++;
+		}
+
+		//the tail may match the server's shorter last block
+		int tail = data.length - literalStart;
+		int lastBlock = weak.length - 1;
+		long lastSize = signature.getLength() - (long) lastBlock * blockSize;
+		if (lastBlock >= 0 && tail >= lastSize && lastSize < blockSize) {
+			int offset = data.length - (int) lastSize;
+			if (weak(data, offset, (int) lastSize) == weak[lastBlock]
+					&& Arrays.equals(strong(data, offset, (int) lastSize), strong[lastBlock])) {
+				addLiteral(ops, literals, data, literalStart, offset);
+				ops.add(lastBlock);
+				literalStart = data.length;
+			}
+		}
+		addLiteral(ops, literals, data, literalStart, data.length);
+
+		int[] opArray = new int[ops.size()];
+		for (int i = 0; i < opArray.length; i++) {
+			opArray[i] = ops.get(i);
+		}
+		return new FileDelta(signature.getDigest(), blockSize, data.length, opArray, literals);
+	}
+
+	/**
+	 * Rebuilds the new contents of a file from its current contents and a delta
+	 */
+	public static byte[] patch(ByteBuffer base, FileDelta delta) throws IOException {
+
+		if (delta.getLength() > Integer.MAX_VALUE - 8) {
+			throw new IOException("Patched file too large");
+		}
+		int blockSize = delta.getBlockSize();
+		byte[] result = new byte[(int) delta.getLength()];
+		int position = 0;
+		for (int op : delta.getOps()) {
+			ByteBuffer source;
+			if (op >= 0) {
+				int offset = op * blockSize;
+				if (offset < 0 || offset >= base.remaining()) {
+					throw new IOException("Malformed delta");
+				}
+				source = base.duplicate();
+				source.position(base.position() + offset);
+				source.limit(Math.min(base.limit(), source.position() + blockSize));
+			} else {
+				source = ByteBuffer.wrap(delta.getLiterals().get(-op - 1));
+			}
+			int size = source.remaining();
+			if (position + size > result.length) {
+				throw new IOException("Malformed delta");
+			}
+			source.get(result, position, size);
+			position += size;
+		}
+		if (position != result.length) {
+			throw new IOException("Malformed delta");
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the rolling checksum of a block, packed as b << 16 | a
+	 */
+	public static int weak(byte[] data, int offset, int size) {
+
+		int a = 0, b = 0;
+		for (int i = 0; i < size; i++) {
+			int value = data[offset + i] & 0xff;
+			a += value;
+			b += (size - i) * value;
+		}
+		return ((b & 0xffff) << 16) | (a & 0xffff);
+	}
+
+	/**
+	 * Computes the rolling checksum of a block of a buffer, the offset 
+	 * being relative to the buffer's position
+	 */
+	public static int weak(ByteBuffer data, int offset, int size) {
+
+		int start = data.position() + offset;
+		int a = 0, b = 0;
+		for (int i = 0; i < size; i++) {
+			int value = data.get(start + i) & 0xff;
+			a += value;
+			b += (size - i) * value;
+		}
+		return ((b & 0xffff) << 16) | (a & 0xffff);
+	}
+
+	/**
+	 * Computes the strong checksum of a block of a buffer, the offset 
+	 * being relative to the buffer's position
+	 */
+	public static byte[] strong(ByteBuffer data, int offset, int size) {
+
+		ByteBuffer block = data.duplicate();
+		block.position(data.position() + offset);
+		block.limit(block.position() + size);
+		MessageDigest md5 = md5();
+		md5.update(block);
+		return md5.digest();
+	}
+
+	/**
+	 * Computes the strong checksum of a block
+	 */
+	public static byte[] strong(byte[] data, int offset, int size) {
+
+		MessageDigest md5 = md5();
+		md5.update(data, offset, size);
+		return md5.digest();
+	}
+
+	/**
+	 * Creates the digest used for strong checksums
+	 */
+	private static MessageDigest md5() {
+
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not available", e);
+		}
+	}
+
+	/**
+	 * Finds a block of the signature matching the window, or returns -1
+	 */
+	private static int match(HashMap<Integer, List<Integer>> index, byte[][] strong, int weak, 
+			byte[] data, int offset, int size) {
+
+		List<Integer> candidates = index.get(weak);
+		if (candidates == null) {
+			return -1;
+		}
+		//only compute the strong checksum once the rolling checksum matches
+		byte[] digest = strong(data, offset, size);
+		for (int block : candidates) {
+			if (Arrays.equals(digest, strong[block])) {
+				return block;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Emits the literal run data[start, end) if it is not empty
+	 */
+	private static void addLiteral(List<Integer> ops, List<byte[]> literals, byte[] data, int start, int end) {
+
+		if (end > start) {
+			literals.add(Arrays.copyOfRange(data, start, end));
+			ops.add(-literals.size());
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+*   @author Tiana Greisel and Garrett Singletary
+*   @title  CSS434 - Program 4 Distributed File System
+*   
+*/
+
+import java.io.*;
+
+/**
+ * Per-block checksums of a file cached on the server. A client uses 
+ * them to find the blocks it already shares with the server and 
+ * upload only what changed.
+ */
+public class BlockSignature implements Serializable {
+    private int blockSize;      //size of each block, the last block may be shorter
+    private long length;        //length of the file the signature was computed over
+    private byte[] digest;      //strong checksum of the whole file, identifies the version
+    private int[] weak;         //rolling checksum of each block
+    private byte[][] strong;    //strong checksum of each block
+    public BlockSignature( int blockSize, long length, byte[] digest, 
+			   int[] weak, byte[][] strong ) {
+	this.blockSize = blockSize;
+	this.length = length;
+	this.digest = digest;
+	this.weak = weak;
+	this.strong = strong;
+    }
+    public int getBlockSize( ) {
+	return blockSize;
+    }
+    public long getLength( ) {
+	return length;
+    }
+    public byte[] getDigest( ) {
+	return digest;
+    }
+    public int[] getWeak( ) {
+	return weak;
+    }
+    public byte[][] getStrong( ) {
+	return strong;
+    }
+}
@@ -5,12 +5,31 @@
 */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.util.Vector;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Class represents a file cached in the server
@@ -18,11 +37,92 @@ import java.util.List;
  * @version CSS434 DFS 
  */
 public class CachedFile {
+
+	//files larger than this are not held in memory and can only be transferred in chunks
+	public static final long MAX_HEAP_SIZE = 64L * 1024 * 1024;
+	//files larger than this cannot be mapped in one buffer and can only be transferred in chunks
+	public static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+
+	//where the server keeps the contents of cached files, on the heap, in memory mapped files or 
+	//on the heap as chunks shared with every file holding the same chunk
+	public enum Storage {HEAP, MAPPED, DEDUP};
+
+	//longest an update waits for its readers to be invalidated, in milliseconds
+	static final long INVALIDATE_DEADLINE = Long.getLong("dfs.invalidate.deadline", 5000);
+
+	//last version handed out to any file
+	private static final java.util.concurrent.atomic.AtomicLong lastVersion = new java.util.concurrent.atomic.AtomicLong();
+
+	//length of a read lease in milliseconds, 0 to keep readers valid until called back instead
+	static final long LEASE_DURATION = Long.getLong("dfs.lease", 0);
+
+	//delay before asking an owner again to write back a file others are waiting for, in milliseconds
+	static final long WRITEBACK_RETRY = 1000;
+
+	//longest a request to lock a byte range stays queued, in milliseconds
+	static final long RANGE_WAIT = Long.getLong("dfs.range.wait", 5000);
+
+	//cached in place of the compressed data of files that do not compress
+	private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+	//chunks of the data of files with DEDUP storage, shared by all cached files
+	static final ChunkStore chunkStore = new ChunkStore();
+
+	//threads making callbacks to clients, shared by all cached files
+	static final ExecutorService callbacks = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "client-callback");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	//schedules repeated writeback requests
+	private static final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "writeback-retry");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	//a client waiting for ownership of the file
+	private static class WriterRequest {
+		ClientProxy client;					//the waiting client
+		long queuedAt = System.nanoTime();	//time the client started waiting
+		CompletableFuture<Void> granted = new CompletableFuture<Void>();	//completed when ownership is granted
+	}
+
+	//a byte range of the file a client locked for writing
+	private static class RangeLock {
+		ClientProxy client;					//the client holding the range
+		long offset;						//first byte of the range
+		long end;							//byte after the range
+		CompletableFuture<Void> granted = new CompletableFuture<Void>();	//completed when the range is locked
+	}
 	
 	private LinkedList<ClientProxy> readers;					//list of readers of this cached file
-	private ClientProxy owner;									//owner of the cached file											
+	private LinkedHashMap<ClientProxy, Long> leases;			//read lease expiry times by reader, soonest first, in lease mode
+	private volatile ClientProxy owner;							//owner of the cached file											
+	private ArrayDeque<WriterRequest> writers;					//clients waiting for ownership, first come first served
+	private ArrayList<RangeLock> ranges;						//byte ranges locked for writing, the file has no owner while any are
+	private ArrayDeque<RangeLock> rangeWaiters;					//byte ranges waiting to be locked, first come first served
+	private final Object mergeLock = new Object();				//serializes range updates, each merges into the contents the last left
+	private long grants;										//ownership grants to waiting clients
+	private long totalWait;										//nanoseconds waited by granted clients
+	private long maxWait;										//longest wait of a granted client, in nanoseconds
+	private String name;										//name of the file under tmp/, as clients request it
 	private File file;											//cached file
-	private byte[] data;										//data of the cached file
+	private FileCache memory;									//budget for the data the server holds in memory
+	private AsyncFileWriter writer;								//writes updated contents to disk in the background
+	private ServerMetrics metrics;								//records ownership waits and client callbacks
+	private Storage storage;									//where the file's contents are kept
+	private final Object dataLock = new Object();				//guards changes to the contents, length and pendingWrites
+	private volatile byte[] data;								//data of the cached file, null if the file is only on disk
+	private volatile ChunkStore.Chunk[] chunks;					//data of the cached file for DEDUP storage, null if only on disk
+	private volatile byte[] assembled;							//DEDUP data joined from its chunks once read, kept until evicted
+	private volatile MappedByteBuffer mapped;					//mapping of the file for MAPPED storage, null if too large
+	private volatile long version;								//version of the contents, increases with each change
+	private volatile long length;								//length of the cached file in bytes
+	private volatile BlockSignature signature;					//block checksums of the current data, computed on demand
+	private volatile byte[] deflated;							//compressed current data, computed on demand and dropped with the data
+	private volatile int pendingWrites;							//updates not yet written to disk, the file is dirty while non zero
 
 	/** 
 	 * Constructor
@@ -30,24 +130,156 @@ public class CachedFile {
 	 * Caches a new file by reading and storing 
 	 * its contents from disk 
 	 */
-	public CachedFile(String filename) throws IOException{
+	public CachedFile(String filename, FileCache memory, Storage storage, AsyncFileWriter writer, 
+			ServerMetrics metrics) throws IOException{
+
+		this(filename, memory, storage, writer, metrics, 0);
+		if (storage != Storage.MAPPED) {
+			// get the file's data from disk
+			load();
+		}
+	}
+
+	/** 
+	 * Constructor
+	 * 	
+	 * Caches a file without reading its contents, which are read from 
+	 * disk on first access. The file keeps the given version if it is 
+	 * known to be the version of the contents on disk, 0 gives it a new one.
+	 */
+	public CachedFile(String filename, FileCache memory, Storage storage, AsyncFileWriter writer, 
+			ServerMetrics metrics, long knownVersion) throws IOException{
 
 		// file path
+		name = filename;
 		file = new File("tmp/" + filename);
-		// get the file's data from disk
-		data = new byte[(int) file.length()];
-		FileInputStream fis = new FileInputStream(file);
-		fis.read(data);
-		//create readers list
+		if (!file.isFile()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		this.memory = memory;
+		this.storage = storage;
+		this.writer = writer;
+		this.metrics = metrics;
+		//create readers list and writer queue
 		readers = new LinkedList<ClientProxy>();
+		leases = new LinkedHashMap<ClientProxy, Long>();
+		writers = new ArrayDeque<WriterRequest>();
+		ranges = new ArrayList<RangeLock>();
+		rangeWaiters = new ArrayDeque<RangeLock>();
+		if (knownVersion > 0) {
+			//later versions must still be newer
+			lastVersion.accumulateAndGet(knownVersion, Math::max);
+			version = knownVersion;
+		} else {
+			version = nextVersion();
+		}
+		if (storage == Storage.MAPPED) {
+			//mapping reads nothing until the pages are touched
+			load();
+		} else {
+			length = file.length();
+		}
+	}
+
+	/**
+	 * Returns a new file version. Versions are hybrid timestamps, the 
+	 * current time scaled so that many versions fit in a millisecond, 
+	 * so they keep increasing across server restarts.
+	 */
+	private static long nextVersion() {
+
+		long now = System.currentTimeMillis() << 10;
+		return lastVersion.updateAndGet(last -> Math.max(last + 1, now));
 	}
 	
+	/**
+	 * Reads the file's data from disk. Files too large to be held in 
+	 * memory are left on disk and read in chunks when transferred.
+	 */
+	private void load() throws IOException {
+
+		if (storage == Storage.MAPPED) {
+			//mapped contents are paged in by the OS and are not counted against the memory budget
+			synchronized (dataLock) {
+				long size = file.length();
+				mapped = size <= MAX_MAPPED_SIZE ? map(file, size) : null;
+				length = size;
+				signature = null;
+				deflated = null;
+			}
+			return;
+		}
+		byte[] bytes;
+		synchronized (dataLock) {
+			long size = file.length();
+			bytes = size <= MAX_HEAP_SIZE ? readFile(file, size) : null;
+			setData(bytes);
+			length = size;
+			signature = null;
+			deflated = null;
+		}
+		if (bytes != null) {
+			memory.miss(this, bytes.length);
+		} else {
+			memory.unloaded(this);
+		}
+	}
+
+	/**
+	 * Reads the whole of the given file into a byte array
+	 */
+	private static byte[] readFile(File file, long size) throws IOException {
+
+		byte[] bytes = new byte[(int) size];
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			in.readFully(bytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Maps the whole of the given file read only
+	 */
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+
+		//the mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+	}
+
+	/**
+	 * Writes new contents through a mapping of a staging file that then 
+	 * replaces the file, so buffers still reading the old mapping are 
+	 * not affected
+	 */
+	private void writeMapped(ByteBuffer contents) throws IOException {
+
+		File staged = new File(file.getParentFile(), "." + file.getName() + ".update");
+		MappedByteBuffer target;
+		try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE, 
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			target = channel.map(FileChannel.MapMode.READ_WRITE, 0, contents.remaining());
+		}
+		target.put(contents.duplicate());
+		target.force();
+		target.rewind();
+		Files.move(staged.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		synchronized (dataLock) {
+			mapped = target;
+			length = target.capacity();
+			signature = null;
+			deflated = null;
+			version = nextVersion();
+		}
+	}
+
 	/**
 	 * Getter for file name
 	 */
 	public String getName(){
 		
-		return file.getName();
+		return name;
 	}
 	
 	/**
@@ -66,9 +298,63 @@ public class CachedFile {
 	 */
 	public synchronized void registerReader(ClientProxy client) {
 
+		if (LEASE_DURATION > 0) {
+			grantLease(client);
+			return;
+		}
 			//calls addReader() but synchroniously 
 			addReader(client);
 	}
+
+	/**
+	 * Grants or renews a read lease. Leases all last LEASE_DURATION so 
+	 * renewing moves the reader to the end, keeping leases in expiry order.
+	 */
+	private void grantLease(ClientProxy client) {
+
+		long now = System.currentTimeMillis();
+		//drop expired leases so the lease table only holds active readers
+		Iterator<Long> it = leases.values().iterator();
+		while (it.hasNext() && it.next() <= now) {
+			it.remove();
+		}
+		leases.remove(client);
+		leases.put(client, now + LEASE_DURATION);
+	}
+
+	/**
+	 * Returns the unexpired leases and clears the lease table
+	 */
+	private synchronized Map<ClientProxy, Long> takeLeases() {
+
+		long now = System.currentTimeMillis();
+		LinkedHashMap<ClientProxy, Long> active = new LinkedHashMap<ClientProxy, Long>();
+		for (Map.Entry<ClientProxy, Long> lease : leases.entrySet()) {
+			if (lease.getValue() > now) {
+				active.put(lease.getKey(), lease.getValue());
+			}
+		}
+		leases.clear();
+		return active;
+	}
+
+	/**
+	 * Getter for the number of registered readers, or of unexpired leases in lease mode
+	 */
+	public synchronized int getReaderCount() {
+
+		if (LEASE_DURATION > 0) {
+			long now = System.currentTimeMillis();
+			int active = 0;
+			for (long expiry : leases.values()) {
+				if (expiry > now) {
+					active++;
+				}
+			}
+			return active;
+		}
+		return readers.size();
+	}
 	
 	/**
 	 * Remove a client from the readers list
@@ -83,84 +369,993 @@ public class CachedFile {
 			if (reader.getName().equals(client))
 				it.remove();
 		}
+		leases.keySet().removeIf(reader -> reader.getName().equals(client));
 	}
 	
 	/**
-	 * Add a writer (owner) to the cached file
+	 * Add a writer (owner) to the cached file, waiting until the client 
+	 * is granted ownership.
+	 * 
+	 * Holds the calling thread while the client waits, clients that can 
+	 * be called back should use requestOwnership instead.
 	 */
 	public void addWriter(ClientProxy client) throws RemoteException{
 		
-		// If the client is present in the reader list, remove client from reader list
-		readers.remove(client);
-		if (!client.equals(owner)) {
+		long start = System.nanoTime();
+		CompletableFuture<Void> granted = requestOwnership(client);
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					granted.get();
+					metrics.ownershipWaits.recordSince(start);
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw new RemoteException("Ownership request failed", e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Queues a client for ownership of the file. The returned future 
+	 * completes once the client is the owner, which is at once if nobody
+	 * owns or is waiting for the file. Waiting clients are granted 
+	 * ownership in the order they asked, no thread is held while they wait.
+	 */
+	public CompletableFuture<Void> requestOwnership(ClientProxy client) {
+
+		WriterRequest request;
+		ClientProxy current;
+		synchronized (this) {
+			// If the client is present in the reader list, remove client from reader list
+			readers.remove(client);
+			leases.remove(client);
+			if (client.equals(owner)) {
+				return CompletableFuture.completedFuture(null);
+			}
+			for (WriterRequest queued : writers) {
+				if (queued.client.equals(client)) {
+					return queued.granted;		//already waiting
+				}
+			}
+			if (owner == null && writers.isEmpty() && ranges.isEmpty()) {
+				owner = client;				//set the new owner to the parameter clientproxy object
+				return CompletableFuture.completedFuture(null);
+			}
+			request = new WriterRequest();
+			request.client = client;
+			writers.add(request);
+			//the first waiter asks the owner to write the file back, later ones just queue
+			current = writers.size() == 1 ? owner : null;
+		}
+		if (current != null) {
+			requestWriteback(current);
+		}
+		return request.granted;
+	}
+
+	/**
+	 * Gives up ownership held by a client that can no longer use it, 
+	 * such as one that could not be told it was granted ownership
+	 */
+	public void abandonOwnership(ClientProxy client) {
+
+		synchronized (this) {
+			if (!client.equals(owner)) {
+				return;
+			}
+			if (LEASE_DURATION == 0) {
+				readers.add(owner);
+			}
+			owner = null;
+			notifyAll();
+		}
+		grantNext();
+	}
+
+	/**
+	 * Grants ownership to the longest waiting client, if any, and asks it
+	 * to write the file back as soon as it can if others are still waiting.
+	 * With nobody waiting for ownership, locks the waiting byte ranges 
+	 * that no longer overlap a locked one instead.
+	 */
+	private void grantNext() {
+
+		WriterRequest next;
+		boolean contended;
+		List<RangeLock> locked;
+		synchronized (this) {
+			locked = takeRanges();
+			if (owner != null || writers.isEmpty() || !ranges.isEmpty()) {
+				next = null;
+				contended = false;
+			} else {
+				next = writers.remove();
+				owner = next.client;
+				contended = !writers.isEmpty();
+				long waited = System.nanoTime() - next.queuedAt;
+				grants++;
+				totalWait += waited;
+				maxWait = Math.max(maxWait, waited);
+			}
+		}
+		for (RangeLock range : locked) {
+			range.granted.complete(null);
+		}
+		if (next == null) {
+			return;
+		}
+		next.granted.complete(null);
+		if (contended) {
+			requestWriteback(next.client);
+		}
+	}
+
+	/**
+	 * Asks the owner to write the file back, without holding the caller. 
+	 * The request is repeated until the owner agrees or loses ownership, 
+	 * since an owner still receiving the file cannot agree yet.
+	 */
+	private void requestWriteback(ClientProxy current) {
+
+		callbacks.execute(() -> {
+			boolean agreed;
+			long start = System.nanoTime();
+			try {
+				//write the cached file back to the server
+				agreed = current.writeback(getName());
+				metrics.writebacks.recordSince(start);
+			} catch (RemoteException e) {
+				System.err.println("Writeback of " + getName() + " to " + current.getName() + " failed: " + e);
+				metrics.writebackFailures.increment();
+				agreed = false;
+			}
 			synchronized (this) {
-                // Wait until the previous owner has released ownership
-				while (owner != null) {
-					try {
-						//write the cached file back to the server
-						owner.writeback();
-						wait();	//wait for current owner to release ownership
-					} catch (InterruptedException e) {
-						continue;
-					} catch (RemoteException e) {
-						throw new RemoteException("writeback to owner failed", e);
-					}
+				if (agreed || !current.equals(owner) || writers.isEmpty() && rangeWaiters.isEmpty()) {
+					return;
 				}
 			}
-		} 
-		owner = client;				//set the new owner to the parameter clientproxy object
+			retries.schedule(() -> requestWriteback(current), WRITEBACK_RETRY, TimeUnit.MILLISECONDS);
+		});
 	}
-	
+
+	/**
+	 * Queues a client to lock a byte range of the file for writing. The 
+	 * returned future completes once the range is locked, which is at 
+	 * once unless another client holds an overlapping range, the file has
+	 * an owner, who is asked to write it back, or clients are queued for 
+	 * ownership, who go first. A request not locked within the given time
+	 * fails with TimeoutException. Clients holding disjoint ranges write
+	 * at the same time, the file cannot be owned while any range is locked.
+	 */
+	public CompletableFuture<Void> lockRange(ClientProxy client, long offset, long length, long timeout) {
+
+		RangeLock request = new RangeLock();
+		request.client = client;
+		request.offset = offset;
+		request.end = offset + length;
+		ClientProxy current;
+		synchronized (this) {
+			if (owner == null && writers.isEmpty() && !overlapsRange(client, request.offset, request.end)) {
+				ranges.add(request);
+				request.granted.complete(null);
+				return request.granted;
+			}
+			rangeWaiters.add(request);
+			//the first waiter asks the owner to write the file back, unless a queued writer already did
+			current = writers.isEmpty() && rangeWaiters.size() == 1 ? owner : null;
+		}
+		if (current != null) {
+			requestWriteback(current);
+		}
+		retries.schedule(() -> {
+			synchronized (this) {
+				if (!rangeWaiters.remove(request)) {
+					return;		//locked already
+				}
+			}
+			request.granted.completeExceptionally(new TimeoutException("Range of " + getName() + " not locked in time"));
+		}, timeout, TimeUnit.MILLISECONDS);
+		return request.granted;
+	}
+
+	/**
+	 * Moves the waiting byte ranges that can be locked now into the locked
+	 * ranges, in the order they were asked for, and returns them. None can
+	 * be while the file is owned or clients are queued for ownership.
+	 */
+	private synchronized List<RangeLock> takeRanges() {
+
+		List<RangeLock> locked = new ArrayList<RangeLock>();
+		if (owner != null || !writers.isEmpty()) {
+			return locked;
+		}
+		Iterator<RangeLock> it = rangeWaiters.iterator();
+		while (it.hasNext()) {
+			RangeLock request = it.next();
+			if (!overlapsRange(request.client, request.offset, request.end)) {
+				it.remove();
+				ranges.add(request);
+				locked.add(request);
+			}
+		}
+		return locked;
+	}
+
+	/**
+	 * Returns whether a range of another client overlaps the given one
+	 */
+	private boolean overlapsRange(ClientProxy client, long offset, long end) {
+
+		for (RangeLock range : ranges) {
+			if (!range.client.equals(client) && range.offset < end && offset < range.end) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the client holds a range covering the given one
+	 */
+	private synchronized boolean holdsRange(String client, long offset, long end) {
+
+		for (RangeLock range : ranges) {
+			if (range.client.getName().equals(client) && range.offset <= offset && end <= range.end) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Unlocks the client's ranges that lie within the given range, and
+	 * grants ownership to the longest waiting client once no range is 
+	 * locked, or locks the waiting ranges no longer overlapping one
+	 */
+	public void unlockRange(String client, long offset, long length) {
+
+		synchronized (this) {
+			ranges.removeIf(range -> range.client.getName().equals(client) 
+				&& range.offset >= offset && range.end - offset <= length);
+		}
+		grantNext();
+	}
+
+	/**
+	 * Unlocks every range the client holds
+	 */
+	public void unlockRanges(String client) {
+
+		unlockRange(client, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Getter for the number of locked byte ranges
+	 */
+	public synchronized int getRangeCount() {
+
+		return ranges.size();
+	}
+
+	/**
+	 * Getter for the number of clients waiting for ownership
+	 */
+	public synchronized int getWriterQueueDepth() {
+
+		return writers.size();
+	}
+
+	/**
+	 * Getter for the average time clients waited for ownership, in milliseconds
+	 */
+	public synchronized double getAverageOwnershipWait() {
+
+		return grants == 0 ? 0 : totalWait / 1e6 / grants;
+	}
+
+	/**
+	 * Getter for the longest time a client waited for ownership, in milliseconds
+	 */
+	public synchronized double getMaxOwnershipWait() {
+
+		return maxWait / 1e6;
+	}
+
+	/**
+	 * Returns whether the named client owns the file
+	 */
+	public boolean isOwnedBy(String clientName) {
+
+		ClientProxy current = owner;
+		return current != null && current.getName().equals(clientName);
+	}
+
+	/**
+	 * Getter for the current owner's name, null if the file has no owner
+	 */
+	public String getOwnerName() {
+
+		ClientProxy current = owner;
+		return current == null ? null : current.getName();
+	}
+
 	/**
 	 * Updates the contents of this file. 
 	 * 
 	 * The current owner relinquishes ownership and all readers
-	 * are invalidated
+	 * are invalidated. Returns false if the client is not the owner.
 	 */
 	public boolean update(String clientName, FileContents contents) throws RemoteException{
 
 		//error handling
-		if (owner == null) {
+		if (!isOwnedBy(clientName)) {
+			return false;		//only the owner may replace the file
+		}
+		if (storage == Storage.MAPPED) {
+			//mapped contents are written before ownership is released so a failed write can be retried
+			try {
+				writer.discard(file, () -> writeMapped(contents.getBuffer()));
+			} catch (IOException e) {
+				throw new RemoteException("Could not write file", e);
+			}
+			releaseOwnership();
+			grantNext();
+			return true;
+		}
+		byte[] bytes = contents.get();	//get contents from the cached file to be updated
+		
+		//queue the contents to be written to disk asynchroniously to avoid a deadlock situation,
+		//once journaled the update survives a crash so ownership is released only after
+		try {
+			queueWrite(bytes);
+		} catch (IOException e) {
+			throw new RemoteException("Could not journal update", e);
+		}
+		//the new contents are in place before ownership is released, so a range locked
+		//as soon as it is released merges into them
+		setContents(bytes);
+		releaseOwnership();
+
+		//grant ownership to the next client waiting for it
+		grantNext();
+		return true;
+	}
+
+	/**
+	 * Writes the given contents into the file at the given offset, which 
+	 * must lie within a range the client locked. The contents may grow 
+	 * the file. Readers other than the client are invalidated, clients 
+	 * writing other ranges keep their ranges.
+	 * 
+	 * Returns false if the client does not hold the range.
+	 */
+	public boolean updateRange(String clientName, long offset, FileContents contents) throws IOException {
+
+		byte[] patch = contents.get();
+		if (!holdsRange(clientName, offset, offset + patch.length)) {
+			return false;
+		}
+		synchronized (mergeLock) {
+			ByteBuffer base = getBody();
+			if (base == null || offset + patch.length > MAX_HEAP_SIZE) {
+				throw new IOException("File too large to update by range");
+			}
+			byte[] merged = new byte[(int) Math.max(base.remaining(), offset + patch.length)];
+			base.get(merged, 0, base.remaining());
+			System.arraycopy(patch, 0, merged, (int) offset, patch.length);
+			if (storage == Storage.MAPPED) {
+				writer.discard(file, () -> writeMapped(ByteBuffer.wrap(merged)));
+			} else {
+				queueWrite(merged);
+				setContents(merged);
+			}
+		}
+		if (LEASE_DURATION > 0) {
+			revokeLeases();
+			return true;
+		}
+		List<ClientProxy> invalidated = new ArrayList<ClientProxy>();
+		synchronized (this) {
+			Iterator<ClientProxy> it = readers.iterator();
+			while (it.hasNext()) {
+				ClientProxy reader = it.next();
+				if (!reader.getName().equals(clientName)) {
+					invalidated.add(reader);
+					it.remove();
+				}
+			}
+		}
+		invalidateAll(getName(), invalidated);
+		return true;
+	}
+
+	/*
+	 * Queues new contents to be written to disk, the file is not 
+	 * evictable until they are
+	 */
+	private void queueWrite(byte[] bytes) throws IOException {
+
+		synchronized (dataLock) {
+			pendingWrites++;
+		}
+		try {
+			writer.write(file, bytes, () -> {
+				synchronized (dataLock) {
+					pendingWrites--;
+				}
+				//the file may now be evicted if the cache is over budget
+				memory.trim();
+			});
+		} catch (IOException e) {
+			synchronized (dataLock) {
+				pendingWrites--;
+			}
+			throw e;
+		}
+	}
+
+	/*
+	 * Replaces the in memory contents with new ones under a new version
+	 */
+	private void setContents(byte[] bytes) {
+
+		synchronized (dataLock) {
+			setData(bytes);
+			length = bytes.length;
+			signature = null;
+			deflated = null;
+			version = nextVersion();
+		}
+		memory.loaded(this, bytes.length);
+	}
+
+	/**
+	 * Updates the contents of this file from a file staged on disk 
+	 * by a chunked upload. The staged file replaces the cached file.
+	 * 
+	 * The current owner relinquishes ownership and all readers
+	 * are invalidated. Returns false if the client is not the owner.
+	 */
+	public boolean update(String clientName, File staged) throws IOException {
+
+		//error handling
+		if (!isOwnedBy(clientName)) {
+			return false;		//only the owner may replace the file
+		}
+		//move the staged file into place and reload it
+		writer.discard(file, () -> Files.move(staged.toPath(), file.toPath(), 
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+		synchronized (dataLock) {
+			version = nextVersion();
+		}
+		load();
+		releaseOwnership();
+
+		//grant ownership to the next client waiting for it
+		grantNext();
+		return true;
+	}
+
+	/**
+	 * Updates the contents of this file by applying a delta to its 
+	 * current contents. 
+	 * 
+	 * Returns false without changing ownership if the client is not the
+	 * owner, the delta was not made against the current contents, or the
+	 * patched contents would not fit in memory, which are uploaded in 
+	 * chunks instead.
+	 */
+	public boolean update(String clientName, FileDelta delta) throws IOException {
+
+		//error handling
+		if (!isOwnedBy(clientName) || delta.getLength() > MAX_HEAP_SIZE) {
 			return false;
 		}
+		ByteBuffer base = getBody();
+		BlockSignature current = getSignature();
+		if (base == null || current == null || !Arrays.equals(delta.getBaseDigest(), current.getDigest())
+				|| delta.getBlockSize() != current.getBlockSize()) {
+			return false;
+		}
+		return update(clientName, new FileContents(BlockChecksums.patch(base, delta)));
+	}
+
+	/**
+	 * Getter for the block checksums of the file's contents, null if 
+	 * the file is only on disk
+	 */
+	public BlockSignature getSignature() throws IOException {
+
+		BlockSignature current = signature;
+		if (current == null) {
+			long computedVersion = version;
+			ByteBuffer body = getBody();
+			if (body == null) {
+				return null;
+			}
+			current = BlockChecksums.signature(body);
+			synchronized (dataLock) {
+				//keep the signature unless the contents changed while it was computed
+				if (version == computedVersion) {
+					signature = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Invalidates all readers and moves the current owner to the readers list.
+	 * 
+	 * In lease mode the holders of unexpired leases are called back to 
+	 * revoke their leases instead, and the leases of those that cannot be
+	 * reached are waited out. The owner gets no lease, it revalidates its
+	 * copy when it next reads the file.
+	 */
+	private void releaseOwnership() throws RemoteException {
+
+		if (LEASE_DURATION > 0) {
+			revokeLeases();
+			synchronized (this) {
+				owner = null;
+				notifyAll();
+			}
+			return;
+		}
+		List<ClientProxy> invalidated;
+		synchronized (this) {
+			invalidated = new ArrayList<ClientProxy>(readers);
+			readers.clear();
+		}
         // Invalidate readers.
-		while (!readers.isEmpty()) {
-			ClientProxy reader = readers.remove();
-			//have reader invalidate their cached file contents
-			reader.invalidate();
+		invalidateAll(getName(), invalidated);
+		synchronized (this) {
+			readers.add(owner);			//add owner to the readers list
+			owner = null;
+			notifyAll();
 		}
-        	readers.add(owner);			//add owner to the readers list
-		owner = null;					
-		data = contents.get();			//get contents from the cached file to be updated
-		
-		//create a new thread to asynchroniously update the file to avoid a deadlock situation
-		(new Thread() {
-    			public void run() {
-    				try {
-    					//update the contents of the cached file
-    					FileOutputStream f = new FileOutputStream(file);
-						f.write(contents.get());
-    					
-    				}
-    				catch(IOException e){
-    					e.printStackTrace();
-    				}
-    			}
-
-    		}).start();
-
-		//notify any waiting threads that were waiting for ownership change/ or a the file to be updated
+	}
+
+	/**
+	 * Calls back the holders of unexpired leases to revoke them, and 
+	 * waits out the leases of those that cannot be reached
+	 */
+	private void revokeLeases() {
+
+		Map<ClientProxy, Long> active = takeLeases();
+		List<ClientProxy> failed = invalidateAll(getName(), new ArrayList<ClientProxy>(active.keySet()));
+		long expiry = 0;
+		for (ClientProxy reader : failed) {
+			expiry = Math.max(expiry, active.get(reader));
+		}
+		waitUntil(expiry);
+	}
+
+	/**
+	 * Ends the file's coherence state on this server when the file moves 
+	 * to another shard. Requests of clients waiting for ownership or a 
+	 * byte range fail with WrongShardException carrying the given 
+	 * shards, so the clients ask the new shard. The owner is asked once
+	 * to write the file back, again only while it cannot agree yet, and
+	 * is waited for up to the given time, after which its copy is given
+	 * up. Then every reader is invalidated.
+	 */
+	public void handOff(long timeout, String[] shards) {
+
+		List<WriterRequest> waiting;
+		List<RangeLock> waitingRanges;
 		synchronized (this) {
+			waiting = new ArrayList<WriterRequest>(writers);
+			writers.clear();
+			waitingRanges = new ArrayList<RangeLock>(rangeWaiters);
+			rangeWaiters.clear();
+		}
+		WrongShardException moved = new WrongShardException(getName() + " moved to another shard", shards);
+		for (WriterRequest request : waiting) {
+			request.granted.completeExceptionally(moved);
+		}
+		for (RangeLock request : waitingRanges) {
+			request.granted.completeExceptionally(moved);
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		ClientProxy current;
+		ClientProxy agreed = null;		//owner that agreed to write the file back, it is not asked again
+		while ((current = owner) != null && System.currentTimeMillis() < deadline) {
+			if (current != agreed) {
+				try {
+					if (current.writeback(getName())) {
+						agreed = current;
+					}
+				} catch (RemoteException e) {
+					System.err.println("Writeback of " + getName() + " to " + current.getName() + " failed: " + e);
+					break;
+				}
+			}
+			//an owner still editing agrees now and uploads when its session ends, one still receiving 
+			//the file cannot agree yet and is asked again
+			synchronized (this) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (current != agreed) {
+					remaining = Math.min(WRITEBACK_RETRY, remaining);
+				}
+				if (owner == current && remaining > 0) {
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+		}
+		List<ClientProxy> invalidated;
+		synchronized (this) {
+			if (owner != null) {
+				System.err.println("Gave up waiting for " + owner.getName() + " to write back " + getName());
+				owner = null;
+			}
+			ranges.clear();
 			notifyAll();
+			invalidated = new ArrayList<ClientProxy>(readers);
+			readers.clear();
 		}
-		return true;
+		if (LEASE_DURATION > 0) {
+			revokeLeases();
+		} else {
+			invalidateAll(getName(), invalidated);
+		}
+	}
+
+	/**
+	 * Sleeps until the given time in milliseconds has passed
+	 */
+	private static void waitUntil(long time) {
+
+		long remaining;
+		while ((remaining = time - System.currentTimeMillis()) > 0) {
+			try {
+				Thread.sleep(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Has every reader invalidate its cached file contents. The callbacks
+	 * are made concurrently and the caller waits at most INVALIDATE_DEADLINE
+	 * for all of them. Readers that fail or do not answer in time are 
+	 * dropped, they are no longer registered and are not waited for.
+	 * 
+	 * Returns the readers that failed or did not answer in time.
+	 */
+	private List<ClientProxy> invalidateAll(String filename, List<ClientProxy> invalidated) {
+
+		List<Future<Boolean>> calls = new ArrayList<Future<Boolean>>(invalidated.size());
+		for (ClientProxy reader : invalidated) {
+			//have reader invalidate their cached file contents
+			calls.add(callbacks.submit(() -> {
+				long start = System.nanoTime();
+				boolean done = reader.invalidate(filename);
+				metrics.invalidations.recordSince(start);
+				return done;
+			}));
+		}
+		List<ClientProxy> failed = new ArrayList<ClientProxy>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(INVALIDATE_DEADLINE);
+		for (int i = 0; i < calls.size(); i++) {
+			Future<Boolean> call = calls.get(i);
+			try {
+				call.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				call.cancel(true);
+				System.err.println("Invalidate timed out, dropping reader " + invalidated.get(i).getName());
+				failed.add(invalidated.get(i));
+			} catch (ExecutionException e) {
+				System.err.println("Invalidate failed, dropping reader " + invalidated.get(i).getName() 
+					+ ": " + e.getCause());
+				failed.add(invalidated.get(i));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failed.addAll(invalidated.subList(i, invalidated.size()));
+				break;
+			}
+		}
+		metrics.invalidationFailures.add(failed.size());
+		return failed;
 	}
 	
 	/**
      * Getter for file contents
      */
-	public FileContents getContents() {
+	public FileContents getContents() throws IOException {
 		
-		return new FileContents(data);
+		//read before the contents so a racing update can only make the version older than the contents
+		long current = version;
+		if (storage == Storage.MAPPED && mapped != null) {
+			//serialized straight from the mapping
+			return new FileContents(getBody(), current);
+		}
+		byte[] bytes = getData();
+		if (bytes == null) {
+			//file is only on disk, read it if it fits in a single transfer
+			long size = file.length();
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException("File too large for a single transfer, use a chunked transfer");
+			}
+			bytes = readFile(file, size);
+		}
+		return new FileContents(bytes, current);
+	}
+
+	/**
+	 * Getter for file contents, compressed for the wire if asked for and 
+	 * that makes them smaller. The compressed form is kept for later 
+	 * downloads until the contents change or the data is evicted, so 
+	 * only files that stay hot in memory keep it.
+	 */
+	public FileContents getContents(boolean compress) throws IOException {
+
+		if (!compress || length < FileContents.COMPRESS_THRESHOLD) {
+			return getContents();
+		}
+		long current = version;
+		ByteBuffer body = getBody();
+		if (body == null) {
+			return getContents();
+		}
+		byte[] compressed = deflated;
+		if (compressed == null) {
+			compressed = FileContents.compress(body);
+			if (compressed == null) {
+				compressed = INCOMPRESSIBLE;
+			}
+			boolean kept = false;
+			synchronized (dataLock) {
+				//keep it unless the contents changed while it was compressed. mapped contents are
+				//off the heap and never resident, a compressed copy of them would be uncharged and
+				//never evicted, so only the marker of incompressible contents is kept for them
+				boolean heap = data != null || chunks != null;
+				if (version == current && (heap || compressed == INCOMPRESSIBLE)) {
+					deflated = compressed;
+					kept = heap;
+				}
+			}
+			if (kept) {
+				//heap data is charged for its compressed form too
+				memory.loaded(this, heldBytes());
+			}
+		}
+		return FileContents.compressed(body, compressed == INCOMPRESSIBLE ? null : compressed, current);
+	}
+
+	/**
+	 * Getter for the file's contents as the NIO transport sends them. 
+	 * When every update has reached disk the file itself is returned, 
+	 * to be sent without copying it through the heap, otherwise the 
+	 * contents in memory are.
+	 */
+	public FileBody openBody() throws IOException {
+
+		long current;
+		boolean clean;
+		synchronized (dataLock) {
+			current = version;
+			clean = pendingWrites == 0;
+		}
+		if (clean) {
+			//the open file keeps the contents it had even if an update replaces it
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			synchronized (dataLock) {
+				//no update started since, so the file holds at least the current version
+				if (version == current) {
+					return new FileBody(current, channel);
+				}
+			}
+			channel.close();
+			current = version;
+		}
+		ByteBuffer body = getBody();
+		if (body == null) {
+			throw new IOException("File too large to hold in memory while it is written to disk");
+		}
+		return new FileBody(current, body);
+	}
+
+	/**
+	 * Getter for a read only view of the file's contents, null if the 
+	 * file is too large to be held in one buffer
+	 */
+	public ByteBuffer getBody() throws IOException {
+
+		if (storage == Storage.MAPPED) {
+			ByteBuffer body = mapped;
+			return body == null ? null : body.asReadOnlyBuffer();
+		}
+		byte[] bytes = getData();
+		return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Getter for the file's in memory data, null if the file is only on disk.
+	 * 
+	 * Data evicted from memory is reloaded from disk.
+	 */
+	private byte[] getData() throws IOException {
+
+		if (storage == Storage.MAPPED) {
+			return null;
+		}
+		boolean joined = storage == Storage.DEDUP && assembled == null;
+		byte[] bytes = heldData();
+		if (bytes != null) {
+			memory.hit(this);
+			if (joined) {
+				memory.loaded(this, heldBytes());		//the joined copy is charged too
+			}
+			return bytes;
+		}
+		boolean loaded = false;
+		synchronized (dataLock) {
+			bytes = heldData();
+			if (bytes == null && length <= MAX_HEAP_SIZE) {
+				bytes = readFile(file, file.length());
+				setData(bytes);
+				if (storage == Storage.DEDUP) {
+					assembled = bytes;		//read now, so kept joined like data read later
+				}
+				length = bytes.length;
+				loaded = true;
+			}
+		}
+		if (loaded) {
+			memory.miss(this, heldBytes());
+		} else if (bytes != null) {
+			memory.hit(this);
+			if (joined) {
+				memory.loaded(this, heldBytes());
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * Returns the data held in memory, or null if there is none. DEDUP 
+	 * data is joined from its chunks on its first read, and the joined 
+	 * copy is kept for the next reads until the data changes or is 
+	 * evicted, the caller charges it to the memory budget.
+	 */
+	private byte[] heldData() {
+
+		if (storage != Storage.DEDUP) {
+			return data;
+		}
+		byte[] joined = assembled;
+		if (joined != null) {
+			return joined;
+		}
+		ChunkStore.Chunk[] held = chunks;
+		if (held == null) {
+			return null;
+		}
+		joined = ChunkStore.read(held);
+		synchronized (dataLock) {
+			//keep it unless the data changed while it was joined
+			if (chunks == held && assembled == null) {
+				assembled = joined;
+			}
+		}
+		return joined;
+	}
+
+	/*
+	 * Bytes of memory the file's data takes, counting the joined copy of 
+	 * DEDUP data and the compressed copy as well as the data
+	 */
+	private long heldBytes() {
+
+		long bytes = length;
+		if (assembled != null) {
+			bytes += length;
+		}
+		byte[] compressed = deflated;
+		if (compressed != null && compressed != INCOMPRESSIBLE) {
+			bytes += compressed.length;
+		}
+		return bytes;
+	}
+
+	/*
+	 * Replaces the data held in memory, null drops it. For DEDUP storage
+	 * the data is put in the chunk store, which only stores the chunks it
+	 * does not hold yet, and the old data's chunks are released. Called
+	 * holding dataLock.
+	 */
+	private void setData(byte[] bytes) {
+
+		if (storage != Storage.DEDUP) {
+			data = bytes;
+			return;
+		}
+		ChunkStore.Chunk[] old = chunks;
+		assembled = null;
+		chunks = bytes == null ? null : chunkStore.put(bytes);
+		if (old != null) {
+			chunkStore.release(old);
+		}
+	}
+
+	/**
+	 * Reads the file's data into memory ahead of its first access
+	 */
+	public void preload() throws IOException {
+
+		if (storage == Storage.MAPPED) {
+			MappedByteBuffer body = mapped;
+			if (body != null) {
+				body.load();
+			}
+			return;
+		}
+		getData();
+	}
+
+	/**
+	 * Returns whether the file's data can be dropped from memory, 
+	 * which is when it is on disk and no client owns the file
+	 */
+	public boolean isEvictable() {
+
+		return owner == null && pendingWrites == 0;
+	}
+
+	/**
+	 * Drops the file's data from memory if it is evictable. 
+	 * 
+	 * Returns whether the data was dropped.
+	 */
+	public boolean evict() {
+
+		synchronized (dataLock) {
+			if (!isEvictable() || (data == null && chunks == null && assembled == null && deflated == null)) {
+				return false;
+			}
+			setData(null);
+			deflated = null;
+			return true;
+		}
+	}
+
+	/**
+	 * Getter for the version of the file's contents
+	 */
+	public long getVersion() {
+
+		return version;
+	}
+
+	/**
+	 * Getter for the file on disk
+	 */
+	public File getFile() {
+
+		return file;
+	}
+
+	/**
+	 * Getter for the length of the file
+	 */
+	public long length() {
+
+		return length;
 	}
 }
\ No newline at end of file
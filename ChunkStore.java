@@ -0,0 +1,193 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A content-addressed store of file data split into chunks, shared by
+ * every file that holds the same chunk.
+ *
+ * Files are cut where a rolling gear hash of their bytes matches a mask,
+ * so a boundary depends only on the bytes just before it. An insertion
+ * or deletion therefore changes only the chunks around it, and near
+ * copies of a file, or two versions of it, share most of their chunks.
+ * Chunks are identified by the SHA-256 digest of their bytes.
+ *
+ * Each chunk counts the references held by files. Putting data adds a
+ * reference to each of its chunks, storing only the chunks the store
+ * does not hold yet. Releasing data drops them, and a chunk is
+ * collected once its last reference is dropped.
+ */
+public class ChunkStore {
+
+	static final int AVERAGE_SIZE = Integer.getInteger("dfs.dedup.chunk", 8192);	//average chunk size, a power of two
+	static final int MIN_SIZE = AVERAGE_SIZE / 4;		//no boundary before this many bytes of a chunk
+	static final int MAX_SIZE = AVERAGE_SIZE * 8;		//chunks are cut here regardless of the hash
+
+	//random value of each byte for the gear hash, fixed so boundaries are the same in every run
+	private static final long[] GEAR = new Random(0x5DEECE66DL).longs(256).toArray();
+
+	// A stored chunk
+	public static class Chunk {
+		final ByteBuffer digest;	//SHA-256 of the bytes, the chunk's key
+		final byte[] bytes;			//the chunk's bytes
+		int references;				//references held by files
+
+		Chunk(ByteBuffer digest, byte[] bytes) {
+			this.digest = digest;
+			this.bytes = bytes;
+		}
+	}
+
+	private HashMap<ByteBuffer, Chunk> chunks;			//stored chunks by digest
+	private long storedBytes;							//bytes of the stored chunks
+	private long referencedBytes;						//bytes of all the data put and not released
+	private LongAdder collected = new LongAdder();		//chunks dropped after their last reference
+
+	//Constructor
+	public ChunkStore() {
+
+		chunks = new HashMap<ByteBuffer, Chunk>();
+	}
+
+	/**
+	 * Splits the given data into chunks and adds a reference to each,
+	 * storing the ones not stored yet. Returns the data's chunks in order.
+	 */
+	public Chunk[] put(byte[] data) {
+
+		//cut and hashed outside the lock, only the lookups are serialized
+		List<ByteBuffer> digests = new ArrayList<ByteBuffer>();
+		List<Integer> ends = new ArrayList<Integer>();
+		MessageDigest sha256 = sha256();
+		for (int start = 0; start < data.length; ) {
+			int end = boundary(data, start);
+			sha256.update(data, start, end - start);
+			digests.add(ByteBuffer.wrap(sha256.digest()));
+			ends.add(end);
+			start = end;
+		}
+		Chunk[] held = new Chunk[digests.size()];
+		synchronized (this) {
+			int start = 0;
+			for (int i = 0; i < held.length; i++) {
+				Chunk chunk = chunks.get(digests.get(i));
+				if (chunk == null) {
+					//only chunks not stored yet are copied
+					chunk = new Chunk(digests.get(i), Arrays.copyOfRange(data, start, ends.get(i)));
+					chunks.put(chunk.digest, chunk);
+					storedBytes += chunk.bytes.length;
+				}
+				chunk.references++;
+				held[i] = chunk;
+				start = ends.get(i);
+			}
+			referencedBytes += data.length;
+		}
+		return held;
+	}
+
+	/**
+	 * Drops a reference to each of the given chunks, collecting the ones
+	 * no file holds anymore
+	 */
+	public synchronized void release(Chunk[] held) {
+
+		for (Chunk chunk : held) {
+			referencedBytes -= chunk.bytes.length;
+			if (--chunk.references == 0) {
+				chunks.remove(chunk.digest);
+				storedBytes -= chunk.bytes.length;
+				collected.increment();
+			}
+		}
+	}
+
+	/**
+	 * Joins the given chunks back into the data they were cut from
+	 */
+	public static byte[] read(Chunk[] held) {
+
+		int length = 0;
+		for (Chunk chunk : held) {
+			length += chunk.bytes.length;
+		}
+		byte[] data = new byte[length];
+		int offset = 0;
+		for (Chunk chunk : held) {
+			System.arraycopy(chunk.bytes, 0, data, offset, chunk.bytes.length);
+			offset += chunk.bytes.length;
+		}
+		return data;
+	}
+
+	/*
+	 * Returns the end of the chunk starting at the given offset: the
+	 * first position past MIN_SIZE where the gear hash matches the mask,
+	 * MAX_SIZE bytes on, or the end of the data
+	 */
+	private static int boundary(byte[] data, int start) {
+
+		int end = Math.min(data.length, start + MAX_SIZE);
+		if (end - start <= MIN_SIZE) {
+			return end;
+		}
+		long mask = AVERAGE_SIZE - 1;
+		long hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+			//the top bits have seen the most bytes, so they are the ones tested
+			if (i - start >= MIN_SIZE && ((hash >>> 40) & mask) == 0) {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+
+	private static MessageDigest sha256() {
+
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Getter for the number of stored chunks
+	 */
+	public synchronized int getChunks() {
+
+		return chunks.size();
+	}
+
+	/**
+	 * Getter for the bytes of the stored chunks, what the data takes in memory
+	 */
+	public synchronized long getStoredBytes() {
+
+		return storedBytes;
+	}
+
+	/**
+	 * Getter for the bytes of all the data held, what it would take
+	 * without sharing chunks
+	 */
+	public synchronized long getReferencedBytes() {
+
+		return referencedBytes;
+	}
+
+	/**
+	 * Getter for the number of chunks collected after their last reference
+	 */
+	public long getCollected() {
+
+		return collected.sum();
+	}
+}
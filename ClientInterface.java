@@ -1,6 +1,8 @@
 import java.rmi.*;
 
 public interface ClientInterface extends Remote {
-    public boolean invalidate( ) throws RemoteException;
-    public boolean writeback( ) throws 	RemoteException;
+    public boolean invalidate( String filename ) throws RemoteException;
+    public boolean writeback( String filename ) throws 	RemoteException;
+    public boolean ownershipGranted( String filename ) throws RemoteException;
+    public boolean rangeGranted( String filename, long offset, long length ) throws RemoteException;
 }
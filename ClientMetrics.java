@@ -0,0 +1,144 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latencies of a file client, published as the MXBean
+ * dfs:type=FileClient
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+	final LatencyHistogram opens = new LatencyHistogram();
+	final LatencyHistogram downloads = new LatencyHistogram();
+	final LatencyHistogram uploads = new LatencyHistogram();
+	final LatencyHistogram ownershipWaits = new LatencyHistogram();
+	final LatencyHistogram prefetches = new LatencyHistogram();
+	final LongAdder predictedFetches = new LongAdder();
+	final LongAdder predictedHits = new LongAdder();
+	final LongAdder predictedWasted = new LongAdder();
+	final LatencyHistogram replicaReads = new LatencyHistogram();
+	final LongAdder replicaFallbacks = new LongAdder();
+	final LongAdder notModified = new LongAdder();
+	final LongAdder restored = new LongAdder();
+	final LongAdder invalidations = new LongAdder();
+	final LongAdder writebacks = new LongAdder();
+
+	private ObjectName name;		//name the metrics are registered under, null if they are not
+
+	/**
+	 * Registers the metrics with the platform MBean server
+	 */
+	public void start() {
+
+		try {
+			name = new ObjectName("dfs:type=FileClient");
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			//another client in the same process registered first
+			name = null;
+		}
+	}
+
+	/**
+	 * Unregisters the metrics
+	 */
+	public void stop() {
+
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// Already gone
+			}
+			name = null;
+		}
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getOpens() {
+		return opens.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getDownloads() {
+		return downloads.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getUploads() {
+		return uploads.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getOwnershipWaits() {
+		return ownershipWaits.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getPrefetches() {
+		return prefetches.snapshot();
+	}
+
+	@Override
+	public long getPredictedFetches() {
+		return predictedFetches.sum();
+	}
+
+	@Override
+	public long getPredictedHits() {
+		return predictedHits.sum();
+	}
+
+	@Override
+	public long getPredictedWasted() {
+		return predictedWasted.sum();
+	}
+
+	@Override
+	public double getPredictedHitRate() {
+		long fetched = predictedFetches.sum();
+		return fetched == 0 ? 0 : (double) predictedHits.sum() / fetched;
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getReplicaReads() {
+		return replicaReads.snapshot();
+	}
+
+	@Override
+	public long getReplicaFallbacks() {
+		return replicaFallbacks.sum();
+	}
+
+	@Override
+	public long getNotModified() {
+		return notModified.sum();
+	}
+
+	@Override
+	public long getRestored() {
+		return restored.sum();
+	}
+
+	@Override
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	@Override
+	public long getWritebacks() {
+		return writebacks.sum();
+	}
+
+	@Override
+	public String toString() {
+
+		return String.format("open %s%ndownload %s%nupload %s%nowner wait %s%nprefetch %s%nreplica %s%n"
+			+ "notModified=%d invalidations=%d writebacks=%d replicaFallbacks=%d%n"
+			+ "predicted fetched=%d hits=%d wasted=%d hitRate=%.2f%n", 
+			getOpens(), getDownloads(), getUploads(), getOwnershipWaits(), getPrefetches(), getReplicaReads(),
+			getNotModified(), getInvalidations(), getWritebacks(), getReplicaFallbacks(),
+			getPredictedFetches(), getPredictedHits(), getPredictedWasted(), getPredictedHitRate());
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * Management interface of a file client's metrics. Durations are in
+ * milliseconds.
+ */
+public interface ClientMetricsMXBean {
+
+	// Whole openFile calls, including any download and ownership wait
+	LatencyHistogram.Snapshot getOpens();
+	LatencyHistogram.Snapshot getDownloads();
+	LatencyHistogram.Snapshot getUploads();
+	LatencyHistogram.Snapshot getOwnershipWaits();
+
+	// Whole prefetch calls, one batch download each
+	LatencyHistogram.Snapshot getPrefetches();
+
+	// Files prefetched because the server predicted them, those then
+	// opened, those evicted or invalidated first, and the share opened
+	long getPredictedFetches();
+	long getPredictedHits();
+	long getPredictedWasted();
+	double getPredictedHitRate();
+
+	// Reads served by replicas, and those that went to the server 
+	// because the replica failed or was behind
+	LatencyHistogram.Snapshot getReplicaReads();
+	long getReplicaFallbacks();
+
+	// Downloads the server answered with notModified
+	long getNotModified();
+
+	// Cached files kept from the client's previous run
+	long getRestored();
+
+	// Callbacks from the server
+	long getInvalidations();
+	long getWritebacks();
+}
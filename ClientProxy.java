@@ -13,19 +13,34 @@ public class ClientProxy implements ClientInterface {
 
 	private String ipName;				//ip name of the client
 	private ClientInterface client;		//reference to the remote client
+	private ClientStubCache stubs;		//cache holding this proxy, null if not cached
+	private long lookedUp;				//time the client's stub was looked up
 
 	//Constructor - constructors object for a client at given ip address and port.
 	public ClientProxy(String ipAddress, String port) throws RemoteException {
 
+		this(ipAddress, port, null);
+	}
+
+	//Constructor - as above, for a proxy held by the given stub cache which drops
+	//the proxy as soon as a call to the client fails.
+	public ClientProxy(String ipAddress, String port, ClientStubCache stubs) throws RemoteException {
+
 		ipName = ipAddress;
+		this.stubs = stubs;
 
 		//look for the client instance that the server wants to access
 		String clientAddress = String.format("rmi://%s:%s/fileclient", ipAddress, port);
 		try{
 			client = (ClientInterface) Naming.lookup(clientAddress);
 		}
-		catch(NotBoundException e){}
-		catch(MalformedURLException e){}
+		catch(NotBoundException e){
+			throw new RemoteException("Client not bound: " + clientAddress, e);
+		}
+		catch(MalformedURLException e){
+			throw new RemoteException("Invalid client address: " + clientAddress, e);
+		}
+		lookedUp = System.currentTimeMillis();
 	}
 
 	//Constructor - sets the ipName and client of the ClientProxy object
@@ -36,14 +51,62 @@ public class ClientProxy implements ClientInterface {
 
 	//calls the ClientInterface object's invalidate function
 	@Override
-	public boolean invalidate( ) throws RemoteException {
-		return client.invalidate();
+	public boolean invalidate( String filename ) throws RemoteException {
+		try {
+			return client.invalidate(filename);
+		}
+		catch(RemoteException e){
+			evict();
+			throw e;
+		}
 	}
 
 	//calls the ClientInterface object's writeback function
 	@Override
-	public boolean writeback( ) throws 	RemoteException {
-		return client.writeback();
+	public boolean writeback( String filename ) throws 	RemoteException {
+		try {
+			return client.writeback(filename);
+		}
+		catch(RemoteException e){
+			evict();
+			throw e;
+		}
+	}
+
+	//calls the ClientInterface object's ownershipGranted function
+	@Override
+	public boolean ownershipGranted( String filename ) throws RemoteException {
+		try {
+			return client.ownershipGranted(filename);
+		}
+		catch(RemoteException e){
+			evict();
+			throw e;
+		}
+	}
+
+	//calls the ClientInterface object's rangeGranted function
+	@Override
+	public boolean rangeGranted( String filename, long offset, long length ) throws RemoteException {
+		try {
+			return client.rangeGranted(filename, offset, length);
+		}
+		catch(RemoteException e){
+			evict();
+			throw e;
+		}
+	}
+
+	//drops this proxy from its stub cache so the client is looked up again next time
+	private void evict() {
+		if(stubs != null){
+			stubs.evict(this);
+		}
+	}
+
+	//returns the time the client's stub was looked up, 0 if it was handed over
+	public long getLookedUp() {
+		return lookedUp;
 	}
 
 	//returns the ipAddress of the ClientProxy object
@@ -65,4 +128,10 @@ public class ClientProxy implements ClientInterface {
 			return false;
 		}
 	}
+
+	//hash code consistent with equals, which compares client names
+	@Override
+	public int hashCode() {
+		return ipName.hashCode();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+/*
+*	@author Tiana Greisel and Garrett Singletary
+*	@title	CSS434 - Program 4 Distributed File System
+*	
+*/
+
+import java.rmi.*;
+import java.util.concurrent.*;
+
+//Caches the proxies of clients by name so the server does not look up a client's
+//callback stub in the registry on every download. A proxy is looked up again once
+//it is older than the time to live, which also checks the client is still bound,
+//and is dropped as soon as a call to its client fails.
+public class ClientStubCache {
+
+	private String port;								//port of the registries clients are bound in
+	private long timeToLive;							//milliseconds a looked up stub is reused
+	private ConcurrentHashMap<String, ClientProxy> proxies;	//cached proxies by client name
+
+	//Constructor - caches proxies of clients bound at the given port for the given time
+	public ClientStubCache(String port, long timeToLive) {
+
+		this.port = port;
+		this.timeToLive = timeToLive;
+		proxies = new ConcurrentHashMap<String, ClientProxy>();
+	}
+
+	//returns the proxy of the named client, looking the client up if it is not
+	//cached or its cached stub has expired
+	public ClientProxy get(String name) throws RemoteException {
+
+		ClientProxy proxy = proxies.get(name);
+		if(proxy != null && (proxy.getLookedUp() == 0 
+				|| System.currentTimeMillis() - proxy.getLookedUp() < timeToLive)){
+			return proxy;
+		}
+		try {
+			ClientProxy fresh = new ClientProxy(name, port, this);
+			proxies.put(name, fresh);
+			return fresh;
+		}
+		catch(RemoteException e){
+			//the client is gone, forget the expired proxy
+			if(proxy != null){
+				proxies.remove(name, proxy);
+			}
+			throw e;
+		}
+	}
+
+	//caches the proxy of a client that was handed over rather than looked up, such as
+	//one in the same process that is not bound in the registry. It never expires.
+	public void add(ClientProxy proxy) {
+
+		proxies.put(proxy.getName(), proxy);
+	}
+
+	//drops a proxy whose client failed, unless it was already replaced
+	public void evict(ClientProxy proxy) {
+
+		proxies.remove(proxy.getName(), proxy);
+	}
+
+	//returns the number of cached proxies
+	public int size() {
+
+		return proxies.size();
+	}
+}
@@ -0,0 +1,20 @@
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Decides which cached file's data the server drops from memory when 
+ * the cache is over its byte budget. Implementations need not be 
+ * thread safe, FileCache serializes all calls.
+ */
+public interface EvictionPolicy {
+    // A file's data was loaded into memory.
+    public void add( String name );
+    // A file whose data is in memory was accessed.
+    public void access( String name );
+    // A file's data was dropped from memory.
+    public void remove( String name );
+    // The next file to drop among those accepted by evictable, or null if none.
+    public String victim( Predicate<String> evictable );
+    // The files in memory, the one the policy would keep longest first.
+    public List<String> hottest();
+}
@@ -0,0 +1,91 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Contents of a cached file as the NIO transport sends them, either the
+ * file on disk, which is sent with FileChannel.transferTo without being
+ * copied through the heap, or a buffer of the contents in memory.
+ */
+public class FileBody implements Closeable {
+
+	private long version;				//version of the contents
+	private long length;				//length of the contents
+	private FileChannel channel;		//the file on disk holding the contents, null if they are in a buffer
+	private ByteBuffer buffer;			//the contents in memory, null if they are on disk
+
+	//Constructor - contents held in a buffer
+	public FileBody(long version, ByteBuffer buffer) {
+
+		this.version = version;
+		this.buffer = buffer;
+		length = buffer.remaining();
+	}
+
+	//Constructor - contents of a file on disk, which stay readable if the file is replaced
+	public FileBody(long version, FileChannel channel) throws IOException {
+
+		this.version = version;
+		this.channel = channel;
+		length = channel.size();
+	}
+
+	/**
+	 * Writes the whole of the contents to the given channel
+	 */
+	public void writeTo(WritableByteChannel out) throws IOException {
+
+		writeTo(out, 0, length);
+	}
+
+	/**
+	 * Writes the given range of the contents to the given channel
+	 */
+	public void writeTo(WritableByteChannel out, long position, long count) throws IOException {
+
+		if (channel == null) {
+			ByteBuffer source = buffer.duplicate();
+			source.position(source.position() + (int) position);
+			source.limit(source.position() + (int) count);
+			while (source.hasRemaining()) {
+				out.write(source);
+			}
+			return;
+		}
+		long end = position + count;
+		while (position < end) {
+			long sent = channel.transferTo(position, end - position, out);
+			if (sent <= 0 && channel.size() <= position) {
+				throw new EOFException("File shrank while it was sent");
+			}
+			position += sent;
+		}
+	}
+
+	/**
+	 * Getter for the version of the contents
+	 */
+	public long getVersion() {
+
+		return version;
+	}
+
+	/**
+	 * Getter for the length of the contents
+	 */
+	public long length() {
+
+		return length;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (channel != null) {
+			channel.close();
+		}
+	}
+}
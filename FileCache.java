@@ -0,0 +1,209 @@
+/*
+*	@author Tiana Greisel and Garrett Singletary
+*	@title	CSS434 - Program 4 Distributed File System
+*	
+*/
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the memory used by the data of the server's cached files.
+ * 
+ * Each cached file reports when its data is loaded into memory and 
+ * when it is accessed. Once the data in memory exceeds the byte budget
+ * the eviction policy picks files whose data is dropped. Only clean 
+ * files without an owner are evicted, an evicted file reloads its data
+ * from disk on its next access.
+ */
+public class FileCache {
+
+	private long capacity;							//byte budget for data in memory
+	private long used;								//bytes of data in memory
+	private EvictionPolicy policy;					//decides which files to evict
+	private HashMap<String, CachedFile> resident;	//files with data in memory by name
+	private HashMap<String, Long> sizes;			//bytes in memory of each resident file
+	private AtomicLong hits;						//accesses served from memory
+	private AtomicLong misses;						//accesses that loaded data from disk
+	private AtomicLong evictions;					//files whose data was dropped
+
+	//Constructor
+	public FileCache(long capacity, EvictionPolicy policy) {
+
+		this.capacity = capacity;
+		this.policy = policy;
+		resident = new HashMap<String, CachedFile>();
+		sizes = new HashMap<String, Long>();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/**
+	 * Creates a cache from the dfs.cache.bytes and dfs.cache.policy 
+	 * (lru or tinylfu) system properties
+	 */
+	public static FileCache fromProperties() {
+
+		long capacity = Long.getLong("dfs.cache.bytes", 256L * 1024 * 1024);
+		String name = System.getProperty("dfs.cache.policy", "tinylfu");
+		EvictionPolicy policy;
+		if (name.equals("lru")) {
+			policy = new LruPolicy();
+		} else if (name.equals("tinylfu")) {
+			policy = new TinyLfuPolicy();
+		} else {
+			throw new IllegalArgumentException("Unknown eviction policy: " + name);
+		}
+		return new FileCache(capacity, policy);
+	}
+
+	/**
+	 * Records an access to a file whose data is in memory
+	 */
+	public synchronized void hit(CachedFile file) {
+
+		hits.incrementAndGet();
+		if (resident.get(file.getName()) == file) {
+			policy.access(file.getName());
+		}
+	}
+
+	/**
+	 * Records that a file's data was read from disk into memory
+	 */
+	public void miss(CachedFile file, long bytes) {
+
+		misses.incrementAndGet();
+		loaded(file, bytes);
+	}
+
+	/**
+	 * Records that a file now holds the given number of bytes of data 
+	 * in memory, evicting other files if the cache is over budget
+	 */
+	public synchronized void loaded(CachedFile file, long bytes) {
+
+		String name = file.getName();
+		Long previous = sizes.put(name, bytes);
+		if (previous == null) {
+			resident.put(name, file);
+			policy.add(name);
+		} else {
+			used -= previous;
+			policy.access(name);
+		}
+		used += bytes;
+		trim();
+	}
+
+	/**
+	 * Evicts files until the cache is within its budget or nothing 
+	 * more can be evicted
+	 */
+	public synchronized void trim() {
+
+		int attempts = resident.size();
+		while (used > capacity && attempts-- > 0) {
+			String name = policy.victim(candidate -> resident.get(candidate).isEvictable());
+			if (name == null) {
+				return;		//everything in memory is dirty or owned
+			}
+			if (!resident.get(name).evict()) {
+				//became dirty or owned since it was picked, try another
+				continue;
+			}
+			forget(name);
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records that a file's data left memory other than by eviction
+	 */
+	public synchronized void unloaded(CachedFile file) {
+
+		if (resident.get(file.getName()) == file) {
+			forget(file.getName());
+		}
+	}
+
+	/**
+	 * Stops tracking a file's data
+	 */
+	private void forget(String name) {
+
+		resident.remove(name);
+		used -= sizes.remove(name);
+		policy.remove(name);
+	}
+
+	/**
+	 * Returns the names of the files with data in memory, the ones the
+	 * eviction policy would keep longest first
+	 */
+	public synchronized List<String> getHottest() {
+
+		return policy.hottest();
+	}
+
+	/**
+	 * Getter for the byte budget
+	 */
+	public long getCapacity() {
+
+		return capacity;
+	}
+
+	/**
+	 * Getter for the bytes of data in memory
+	 */
+	public synchronized long getUsed() {
+
+		return used;
+	}
+
+	/**
+	 * Getter for the number of files with data in memory
+	 */
+	public synchronized int getResidentFiles() {
+
+		return resident.size();
+	}
+
+	/**
+	 * Getter for the number of accesses served from memory
+	 */
+	public long getHits() {
+
+		return hits.get();
+	}
+
+	/**
+	 * Getter for the number of accesses that loaded data from disk
+	 */
+	public long getMisses() {
+
+		return misses.get();
+	}
+
+	/**
+	 * Getter for the number of files whose data was evicted
+	 */
+	public long getEvictions() {
+
+		return evictions.get();
+	}
+
+	/**
+	 * Summary of the cache's statistics
+	 */
+	@Override
+	public synchronized String toString() {
+
+		long total = hits.get() + misses.get();
+		double hitRate = total == 0 ? 0 : 100.0 * hits.get() / total;
+		return String.format("files=%d bytes=%d/%d hits=%d misses=%d hitRate=%.1f%% evictions=%d", 
+			resident.size(), used, capacity, hits.get(), misses.get(), hitRate, evictions.get());
+	}
+}
@@ -5,7 +5,14 @@
 */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
 import java.rmi.*;
 import java.rmi.server.*;
 import java.net.*;
@@ -13,59 +20,271 @@ import java.net.UnknownHostException;
 
 public class FileClient extends UnicastRemoteObject implements ClientInterface {
 
+	static final int TRANSFER_WINDOW = 4;		//number of chunks of a chunked transfer in flight at once
+	static final String INDEX = ".index";		//name of the index of the cache directory
+	static final long OWNERSHIP_RECHECK = Long.getLong("dfs.ownership.recheck", 10000);	//wait for a grant before asking again, in milliseconds
+	static final long RANGE_WAIT = Long.getLong("dfs.range.wait", 5000);	//longest wait for a byte range to be locked, in milliseconds
+
 	private String ipName;				//ip name of the client
 	private ServerInterface fileServer;	//remote server for DFS
-	private String fileName = null;			//name of the file cached locally
-	private File cachedFile;			//reference to the cached file
-	private String localPath;			//local path to file cache
-	//private String accessMode;			//current file access mode such as read or write
-	private boolean ownership;			//indicates if client owns the file - or is exclusively writing the file
-	private CacheState state = CacheState.INVALID;	//current state of the cache
-
-	//possible states of the cache
+	private File cacheDir;				//local directory holding the cached files
+	private int capacity;				//most files cached at once
+	private LinkedHashMap<String, CacheEntry> entries;	//cached files by name, least recently opened first
+	private CacheEntry current;			//file of the current or last editing session
+	private boolean chunked;			//transfer files in chunks streamed to and from the cached file
+	private ExecutorService transferPool;	//threads fetching and pushing chunks of chunked transfers
+	private boolean compressed;			//server agreed to compressed contents in both directions
+	private ClientMetrics metrics;		//counters and latencies, published over JMX
+	private ReplicaInterface[] replicas;	//read replicas of the server, null if reads go to the server
+	private boolean persistent;			//keep cached files and their versions when the client exits
+	private long prefetchBudget;		//most bytes of predicted files fetched and not yet opened
+	private ThreadPoolExecutor predictor;	//asks the server what follows each open and prefetches it, null if the client does not
+	private String lastOpened;			//file opened last, the server learns which file follows which
+	private HashMap<String, Boolean> rangeWaits = new HashMap<String, Boolean>();	//whether each byte range waited for was locked, by file, offset and length
+
+	//possible states of a cached file
 	private enum CacheState {INVALID, READ_SHARED, WRITE_OWNED, MODIFIED_OWNED, RELEASE_OWNERSHIP};
 
+	//a file cached locally and its coherence state
+	private static class CacheEntry {
+		String name;				//name of the file on the server
+		File file;					//local copy of the file
+		CacheState state = CacheState.INVALID;	//current state of the cached file
+		long version = -1;			//server version of the local copy, -1 if unknown
+		boolean granted;			//server granted ownership the client is waiting for
+		long lease;					//length of the server's read leases in milliseconds, 0 if it calls back instead
+		long leaseExpiry;			//System.nanoTime() after which a read copy must be revalidated
+		boolean predicted;			//prefetched because the server predicted it, and not opened since
+		boolean writingBack;		//upload answering a writeback request in flight
+
+		CacheEntry(String name, File file) {
+			this.name = name;
+			this.file = file;
+		}
+	}
+
 	//Constructor, constructs a FileClient by passing it the FileServer object it wishes
 	//to connect with and sets the local path, and default file for the user.
 	public FileClient(ServerInterface fileServer) throws RemoteException, IOException{
 
+		this(fileServer, Boolean.getBoolean("dfs.chunked"));
+	}
+
+	//Constructor, as above, optionally transferring files in chunks so that files of 
+	//any size move through bounded memory.
+	public FileClient(ServerInterface fileServer, boolean chunked) throws RemoteException, IOException{
+
+		this(fileServer, chunked, Integer.getInteger("dfs.client.files", 16));
+	}
+
+	//Constructor, as above, caching at most the given number of files.
+	public FileClient(ServerInterface fileServer, boolean chunked, int capacity) throws RemoteException, IOException{
+
 		this.fileServer = fileServer;
+		this.chunked = chunked;
+		this.capacity = Math.max(1, capacity);
+		entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+		if(chunked){
+			transferPool = Executors.newFixedThreadPool(TRANSFER_WINDOW, runnable -> {
+				Thread thread = new Thread(runnable, "chunk-transfer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
 		String username = System.getProperty("user.name");
-		localPath = "/tmp/" + username + ".txt";	//set local path to file cache
-		cachedFile = new File("/tmp/" + username + ".txt");		//create a file to store into “/tmp/useraccount.txt”
-		if(!cachedFile.exists()){
-			cachedFile.createNewFile();
-			cachedFile.setReadable(true);	//allow file to be readable by default
+		cacheDir = new File("/tmp/" + username + ".dfs");		//cache files in “/tmp/useraccount.dfs/”
+		if(!cacheDir.isDirectory() && !cacheDir.mkdirs()){
+			throw new IOException("Could not create cache directory " + cacheDir);
 		}
 		//get ip name of the client
 		try{
 			ipName = InetAddress.getLocalHost().getHostName();
 		}
 		catch(UnknownHostException e){}
+		//dfs.compress=false keeps contents uncompressed on the wire
+		if(Boolean.parseBoolean(System.getProperty("dfs.compress", "true"))){
+			String format = fileServer.negotiate(ipName, new String[] {FileContents.DEFLATE});
+			compressed = FileContents.DEFLATE.equals(format);
+		}
+		metrics = new ClientMetrics();
+		metrics.start();
+		//dfs.client.persist=false deletes the cached files when the client exits
+		persistent = Boolean.parseBoolean(System.getProperty("dfs.client.persist", "true"));
+		if(persistent){
+			loadIndex();
+		}
+		//dfs.prefetch.budget=0 turns off prefetching the files the server predicts
+		prefetchBudget = Long.getLong("dfs.prefetch.budget", 4 << 20);
+		if(prefetchBudget > 0){
+			//a single thread and only the latest open waiting, older predictions are stale by then
+			predictor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1), 
+				runnable -> {
+					Thread thread = new Thread(runnable, "predictor");
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.DiscardOldestPolicy());
+		}
+	}
+
+	//reads the index of the files the previous run cached, keeping the copies that did not change
+	//since it was written. they stay invalid until revalidated with the server.
+	private void loadIndex() {
+
+		File index = new File(cacheDir, INDEX);
+		if(!index.isFile()){
+			return;
+		}
+		try{
+			List<String> lines = Files.readAllLines(index.toPath(), StandardCharsets.UTF_8);
+			//least recently opened first, so the ones that fit are at the end
+			for(String line : lines.subList(Math.max(0, lines.size() - capacity), lines.size())){
+				//version, length and modification time of the copy, then the file name
+				String[] fields = line.split(" ", 4);
+				if(fields.length < 4){
+					continue;
+				}
+				File copy = new File(cacheDir, fields[3]);
+				if(copy.length() != Long.parseLong(fields[1]) || copy.lastModified() != Long.parseLong(fields[2])){
+					continue;	//changed since, downloaded again when opened
+				}
+				CacheEntry entry = new CacheEntry(fields[3], copy);
+				entry.version = Long.parseLong(fields[0]);
+				entries.put(entry.name, entry);
+				metrics.restored.increment();
+			}
+		}
+		catch(IOException | NumberFormatException e){
+			System.err.println("Could not read cache index: " + e);
+		}
+	}
+
+	//revalidates the files kept from the previous run with the server in one batch, so only the ones
+	//that changed are downloaded. the client must be bound for callbacks first, since the server
+	//registers it as a reader of each file.
+	public synchronized void revalidate() throws IOException {
+
+		List<String> kept = new ArrayList<String>();
+		for(CacheEntry entry : entries.values()){
+			if(entry.state == CacheState.INVALID && entry.version >= 0){
+				kept.add(entry.name);
+			}
+		}
+		if(!kept.isEmpty()){
+			prefetch(kept.toArray(new String[0]));
+		}
 	}
 
 	//opens a file given the parameter's filename and the mode requested by the user.
 	public synchronized void openFile(String fname, char mode) throws IOException {
 
-		if(!fname.equals(fileName) && fname != null){
-			//files don't match, upload current file to server if state is writeowned or modified owned
-			if(state == CacheState.WRITE_OWNED || state == CacheState.MODIFIED_OWNED){
-				uploadFile();
-				state = CacheState.INVALID;		//set state to invalid so client can download desired file from server
+		long start = System.nanoTime();
+		try {
+			open(fname, mode);
+		}
+		finally {
+			metrics.opens.recordSince(start);
+		}
+		predictNext(fname);
+	}
+
+	//tells the server in the background which file was opened after the last one, and prefetches
+	//the files it predicts are opened next, as many as fit in what is left of the prefetch budget.
+	private void predictNext(String fname) {
+
+		if(predictor == null){
+			return;
+		}
+		String previous = lastOpened;
+		lastOpened = fname;
+		long budget = prefetchBudget;
+		for(CacheEntry entry : entries.values()){
+			if(entry.predicted){
+				budget -= entry.file.length();
+			}
+		}
+		long left = Math.max(0, budget);
+		predictor.execute(() -> {
+			try{
+				String[] likely = fileServer.predictNext(ipName, previous, fname, left);
+				if(likely.length > 0){
+					prefetchPredicted(likely);
+				}
+			}
+			catch(IOException e){
+				//a missed prediction only costs the open its download
+			}
+		});
+	}
+
+	//prefetches predicted files into the room not taken by files the user opened, so a wrong guess
+	//never evicts them. the predicted files are evicted first until they are opened.
+	private synchronized void prefetchPredicted(String[] likely) throws IOException {
+
+		if(predictor.isShutdown()){
+			return;		//closed meanwhile
+		}
+		int room = capacity;
+		for(CacheEntry entry : entries.values()){
+			if(!entry.predicted){
+				room--;
+			}
+		}
+		List<String> wanted = new ArrayList<String>();
+		for(String fname : likely){
+			CacheEntry entry = entries.get(fname);
+			if(wanted.size() < room && (entry == null || entry.state == CacheState.INVALID)){
+				wanted.add(fname);
+			}
+		}
+		if(wanted.isEmpty()){
+			return;
+		}
+		prefetch(wanted.toArray(new String[0]));
+		for(String fname : wanted){
+			CacheEntry entry = entries.get(fname);
+			if(entry != null && entry.state == CacheState.READ_SHARED){
+				entry.predicted = true;
+				metrics.predictedFetches.increment();
+			}
+		}
+	}
+
+	//opens a file, downloading it or asking for ownership if the cached copy does not allow the mode.
+	private void open(String fname, char mode) throws IOException {
+
+		CacheEntry entry = entries.get(fname);
+		if(entry != null && entry.predicted){
+			//a prediction that came true, unless the copy was invalidated before it was opened
+			entry.predicted = false;
+			if(entry.state == CacheState.READ_SHARED){
+				metrics.predictedHits.increment();
+			}
+			else{
+				metrics.predictedWasted.increment();
 			}
 		}
+		if(entry == null){
+			//file not cached, make room for it
+			evictEntries(capacity - 1);
+			entry = new CacheEntry(fname, new File(cacheDir, fname));
+			entries.put(fname, entry);
+		}
+		current = entry;
 		
 		//check state of cache to determine if client downloads server file or not
-		switch(state){
+		switch(entry.state){
 
 			case INVALID:
 				//download requested file from server
-				downloadFile(fname, mode);
+				if(mode == 'w'){
+					acquireOwnership(entry);
+				}
+				downloadFile(entry, mode);
 				if(mode == 'r'){
-					state = CacheState.READ_SHARED;
+					entry.state = CacheState.READ_SHARED;
 				}
 				else{
-					state = CacheState.WRITE_OWNED;
+					entry.state = CacheState.WRITE_OWNED;
 				}
 				break;
 			case WRITE_OWNED:
@@ -74,13 +293,18 @@ public class FileClient extends UnicastRemoteObject implements ClientInterface {
 			case READ_SHARED:
 				//if user wants to open file for writing, must get writeowned permissions from server with file
 				if(mode == 'w'){
-					downloadFile(fname, mode);
-					state = CacheState.WRITE_OWNED;
+					acquireOwnership(entry);
+					downloadFile(entry, mode);
+					entry.state = CacheState.WRITE_OWNED;
+				}
+				else if(entry.lease > 0 && System.nanoTime() - entry.leaseExpiry >= 0){
+					//read lease ran out, revalidate the copy with the server which renews the lease
+					downloadFile(entry, mode);
 				}
 				break;
 			case MODIFIED_OWNED:
 				//user already completed a session with file before, change state back to write since file was uploaded back to server
-				state = CacheState.WRITE_OWNED;
+				entry.state = CacheState.WRITE_OWNED;
 				break;
 			default:
 				throw new IllegalStateException();
@@ -88,45 +312,479 @@ public class FileClient extends UnicastRemoteObject implements ClientInterface {
 		}
 	}
 
+	//downloads those of the given files whose cached copy cannot be read without asking the server,
+	//in one call to the server, so that opening them in read mode later needs no round trip. only as
+	//many files as the cache holds are fetched, and files that cannot be opened are skipped, opening
+	//them reports why.
+	public synchronized void prefetch(String... fnames) throws IOException {
+
+		long start = System.nanoTime();
+		List<CacheEntry> fetched = new ArrayList<CacheEntry>();
+		for(String fname : new LinkedHashSet<String>(Arrays.asList(fnames))){
+			if(fetched.size() >= capacity){
+				break;		//no room for more
+			}
+			CacheEntry entry = entries.get(fname);
+			if(entry == null){
+				//the files fetched so far were cached last, so they are not the ones evicted
+				evictEntries(capacity - 1);
+				entry = new CacheEntry(fname, new File(cacheDir, fname));
+				entries.put(fname, entry);
+			}
+			else if(entry.state != CacheState.INVALID && (entry.state != CacheState.READ_SHARED 
+					|| entry.lease == 0 || System.nanoTime() - entry.leaseExpiry < 0)){
+				continue;	//readable as it is
+			}
+			fetched.add(entry);
+		}
+		if(fetched.isEmpty()){
+			return;
+		}
+		if(chunked){
+			//chunked transfers keep large files out of memory, so fetch them one at a time
+			for(CacheEntry entry : fetched){
+				try{
+					downloadFile(entry, 'r');
+					entry.state = CacheState.READ_SHARED;
+				}
+				catch(RemoteException e){
+					//skipped, opening the file reports the error
+				}
+			}
+			metrics.prefetches.recordSince(start);
+			return;
+		}
+		String[] names = new String[fetched.size()];
+		long[] versions = new long[fetched.size()];
+		for(int i = 0; i < names.length; i++){
+			CacheEntry entry = fetched.get(i);
+			names[i] = entry.name;
+			versions[i] = entry.version >= 0 && entry.file.exists() ? entry.version : -1;
+		}
+		long requested = System.nanoTime();
+		FileContents[] contents = fileServer.prefetch(ipName, names, versions);
+		for(int i = 0; i < names.length; i++){
+			if(contents[i] != null){
+				store(fetched.get(i), contents[i], 'r', requested);
+				fetched.get(i).state = CacheState.READ_SHARED;
+			}
+		}
+		metrics.prefetches.recordSince(start);
+	}
+
+	//asks the server for ownership of a file and waits until it is granted. the server calls
+	//ownershipGranted when it is the client's turn rather than holding a thread while it waits.
+	//in case that callback is lost the client asks again every OWNERSHIP_RECHECK milliseconds,
+	//which keeps its place in the queue and returns true once it owns the file.
+	private void acquireOwnership(CacheEntry entry) throws IOException {
+
+		entry.granted = false;
+		long start = System.nanoTime();
+		if(fileServer.requestOwnership(ipName, entry.name)){
+			metrics.ownershipWaits.recordSince(start);
+			return;
+		}
+		System.out.println("Waiting for " + entry.name + " to be released ...");
+		long recheck = System.currentTimeMillis() + OWNERSHIP_RECHECK;
+		while(!entry.granted){
+			long remaining = recheck - System.currentTimeMillis();
+			if(remaining <= 0){
+				if(fileServer.requestOwnership(ipName, entry.name)){
+					break;
+				}
+				recheck = System.currentTimeMillis() + OWNERSHIP_RECHECK;
+				continue;
+			}
+			try{
+				wait(remaining);		//releases the client so callbacks can be served while waiting
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for ownership of " + entry.name);
+			}
+		}
+		metrics.ownershipWaits.recordSince(start);
+	}
+
+	//locks a byte range of a file on the server for writing with writeRange, waiting up to RANGE_WAIT
+	//milliseconds for other clients' overlapping ranges. the server calls rangeGranted once a range it
+	//queued is locked rather than holding a thread while it waits. returns whether the range was locked.
+	//not synchronized, so the client still answers callbacks while it waits.
+	public boolean lockRange(String fname, long offset, long length) throws IOException {
+
+		String key = fname + ":" + offset + ":" + length;
+		synchronized(rangeWaits){
+			rangeWaits.put(key, false);		//before asking, the callback may come before the answer
+		}
+		try{
+			if(fileServer.lockRange(ipName, fname, offset, length)){
+				return true;
+			}
+			long deadline = System.currentTimeMillis() + RANGE_WAIT;
+			synchronized(rangeWaits){
+				while(!rangeWaits.get(key)){
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0){
+						return false;	//a grant coming later is refused, so the server unlocks the range
+					}
+					try{
+						rangeWaits.wait(remaining);
+					}
+					catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting to lock a range of " + fname);
+					}
+				}
+				return true;
+			}
+		}
+		finally{
+			synchronized(rangeWaits){
+				rangeWaits.remove(key);
+			}
+		}
+	}
+
+	//writes data into a locked byte range of a file on the server, without downloading or owning
+	//the file. a cached read copy of the file no longer matches the server, so it is invalidated.
+	public boolean writeRange(String fname, long offset, byte[] data) throws IOException {
+
+		long start = System.nanoTime();
+		boolean written;
+		try {
+			written = fileServer.uploadRange(ipName, fname, offset, wrap(data));
+		}
+		finally {
+			metrics.uploads.recordSince(start);
+		}
+		synchronized (this) {
+			CacheEntry entry = entries.get(fname);
+			if(entry != null && entry.state == CacheState.READ_SHARED){
+				entry.state = CacheState.INVALID;
+			}
+		}
+		return written;
+	}
+
+	//unlocks the client's locked ranges of a file within the given byte range.
+	public void unlockRange(String fname, long offset, long length) throws IOException {
+
+		fileServer.unlockRange(ipName, fname, offset, length);
+	}
+
+	//evicts least recently opened files until at most the given number are cached, writing back
+	//modified files first and telling the server the client no longer caches them.
+	private void evictEntries(int keep) throws IOException {
+
+		Iterator<CacheEntry> it = entries.values().iterator();
+		//predicted files never opened go first, they were only guesses
+		while(entries.size() > keep && it.hasNext()){
+			CacheEntry entry = it.next();
+			if(entry.predicted){
+				it.remove();
+				entry.file.delete();
+				fileServer.release(ipName, entry.name);
+				metrics.predictedWasted.increment();
+			}
+		}
+		it = entries.values().iterator();
+		while(entries.size() > keep && it.hasNext()){
+			CacheEntry entry = it.next();
+			if(entry == current && entry.state == CacheState.WRITE_OWNED){
+				continue;	//still being edited
+			}
+			if(entry.state == CacheState.MODIFIED_OWNED || entry.state == CacheState.RELEASE_OWNERSHIP){
+				uploadFile(entry);
+			}
+			it.remove();
+			entry.file.delete();
+			fileServer.release(ipName, entry.name);
+		}
+	}
+
 	//calls the server's remote upload function to upload a file back to the server.
-	private boolean uploadFile() throws IOException {
+	//only the blocks that changed are sent if the server can take a delta of the file.
+	private boolean uploadFile(CacheEntry entry) throws IOException {
 
-		return fileServer.upload(ipName, fileName, getFileContents());
+		long start = System.nanoTime();
+		try {
+			return upload(entry);
+		}
+		finally {
+			metrics.uploads.recordSince(start);
+		}
+	}
+
+	//uploads a file as a delta, whole or in chunks. a file too large for the server to hold in memory
+	//is not diffed, which would read it whole, it is only sent in chunks.
+	private boolean upload(CacheEntry entry) throws IOException {
+
+		//the local copy no longer matches a known server version
+		entry.version = -1;
+		//and holds no read lease, so it is revalidated before it is next read
+		entry.leaseExpiry = System.nanoTime();
+		BlockSignature signature = fileServer.getSignature(ipName, entry.name);
+		if(signature != null && entry.file.length() <= CachedFile.MAX_HEAP_SIZE){
+			byte[] data = getFileContents(entry).get();
+			FileDelta delta = BlockChecksums.diff(signature, data);
+			//send the delta unless the file changed so much the delta saves nothing
+			if(delta.literalBytes() < data.length && fileServer.uploadDelta(ipName, entry.name, delta)){
+				return true;
+			}
+			if(!chunked){
+				return fileServer.upload(ipName, entry.name, wrap(data));
+			}
+		}
+		if(chunked){
+			return uploadChunked(entry);
+		}
+		return fileServer.upload(ipName, entry.name, wrap(getFileContents(entry).get()));
 	}
 
 	//calls the servers remote download function to download a new file from the server.
-	private void downloadFile(String filename, char mode) throws IOException {
+	//if the local copy's version is known the file is only sent if it changed on the server.
+	private void downloadFile(CacheEntry entry, char mode) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			download(entry, mode);
+		}
+		finally {
+			metrics.downloads.recordSince(start);
+		}
+	}
 
+	//downloads a file whole or in chunks.
+	private void download(CacheEntry entry, char mode) throws IOException {
+
+		if(chunked){
+			downloadChunked(entry, mode);
+			return;
+		}
 		//download filename from server and get FileContents
-		FileContents contents = fileServer.download(ipName, filename, Character.toString(mode));
-		//set the clients cached file name and allow file to be writable
-		fileName = filename;
+		long requested = System.nanoTime();		//leases are counted from the request so they end before the server's
+		FileContents contents;
+		if(mode == 'r' && replicas != null){
+			contents = readReplica(entry);
+		}
+		else if(entry.version >= 0 && entry.file.exists()){
+			contents = fileServer.downloadIfModified(ipName, entry.name, Character.toString(mode), entry.version);
+		}
+		else{
+			contents = fileServer.download(ipName, entry.name, Character.toString(mode));
+		}
+		store(entry, contents, mode, requested);
+	}
+
+	//registers a read with the server, which answers with the file's version, and reads the contents
+	//from a replica unless the local copy has that version. falls back to the server if the replica
+	//cannot be reached or is behind.
+	private FileContents readReplica(CacheEntry entry) throws IOException {
+
+		FileContents current = fileServer.validate(ipName, entry.name);
+		if(current.getVersion() == entry.version && entry.file.exists()){
+			return current;
+		}
+		//each client keeps to one replica per file, clients spread over all of them
+		ReplicaInterface replica = replicas[Math.floorMod((ipName + entry.name).hashCode(), replicas.length)];
+		long start = System.nanoTime();
+		try{
+			FileContents contents = replica.read(entry.name, current.getVersion());
+			if(contents.getVersion() >= current.getVersion()){
+				metrics.replicaReads.recordSince(start);
+				contents.setLease(current.getLease());
+				return contents;
+			}
+		}
+		catch(RemoteException e){
+			System.err.println("Replica read of " + entry.name + " failed: " + e);
+		}
+		metrics.replicaFallbacks.increment();
+		return fileServer.downloadIfModified(ipName, entry.name, "r", entry.file.exists() ? entry.version : -1);
+	}
+
+	//sends reads to the given replicas of the server, ownership and writes still go to the server
+	public synchronized void useReplicas(ReplicaInterface... replicas) {
+
+		this.replicas = replicas.length == 0 ? null : replicas;
+	}
+
+	//writes downloaded contents to the cached file, or only changes its access mode if the server
+	//answered that the local copy is current.
+	private void store(CacheEntry entry, FileContents contents, char mode, long requested) throws IOException {
+
+		//allow file to be writable
+		File cachedFile = entry.file;
+		startLease(entry, contents.getLease(), requested);
+		if(contents.isNotModified()){
+			metrics.notModified.increment();
+			cachedFile.setWritable(mode == 'w');	//local copy is current, only the access mode changes
+			return;
+		}
 		cachedFile.setWritable(true);	//allow file to be modified to write filecontents to it
 
+		//files in subdirectories of the server's tmp/ are cached in the same subdirectories
+		cachedFile.getParentFile().mkdirs();
 		//get contents from FileContents object and transfer to File object stored in client
 		FileOutputStream writer = new FileOutputStream(cachedFile);
 		writer.write(contents.get());		//write contents of FileContents to cached file
 		writer.close();		//close file
+		entry.version = contents.getVersion();
 		cachedFile.setWritable(mode == 'w');	//set file to writable if client opened file for writing
 	}
 
-	//returns the file contents of the currently cached file
-	private FileContents getFileContents() throws FileNotFoundException, IOException {
+	//records the read lease granted by a download requested at the given System.nanoTime()
+	private void startLease(CacheEntry entry, long lease, long requested) {
+
+		entry.lease = lease;
+		entry.leaseExpiry = requested + TimeUnit.MILLISECONDS.toNanos(lease);
+	}
+
+	//downloads a file from the server in chunks, writing each chunk straight into the cached file
+	//as it arrives with several chunks in flight at once.
+	private void downloadChunked(CacheEntry entry, char mode) throws IOException {
+
+		TransferHandle handle;
+		File cachedFile = entry.file;
+		long requested = System.nanoTime();		//leases are counted from the request so they end before the server's
+		if(entry.version >= 0 && cachedFile.exists()){
+			handle = fileServer.openDownloadIfModified(ipName, entry.name, Character.toString(mode), entry.version);
+			if(handle == null){
+				//local copy is current, only the access mode changes. the lease was renewed with
+				//the server's configured length, which is unchanged since the last download
+				startLease(entry, entry.lease, requested);
+				metrics.notModified.increment();
+				cachedFile.setWritable(mode == 'w');
+				return;
+			}
+		}
+		else{
+			handle = fileServer.openDownload(ipName, entry.name, Character.toString(mode));
+		}
+		startLease(entry, handle.getLease(), requested);
+		entry.version = -1;		//unknown until the whole file has arrived
+		cachedFile.setWritable(true);	//allow file to be modified to write chunks to it
+		cachedFile.getParentFile().mkdirs();
+		try (FileChannel out = FileChannel.open(cachedFile.toPath(), StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			transferChunks(handle, (offset, size) -> {
+				byte[] chunk = fileServer.readChunk(handle.getId(), offset, size).get();
+				if (chunk.length != size) {
+					throw new EOFException("Short chunk at offset " + offset);
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(chunk);
+				while (buffer.hasRemaining()) {
+					out.write(buffer, offset + buffer.position());
+				}
+			});
+		}
+		finally {
+			fileServer.closeTransfer(handle.getId());
+		}
+		entry.version = handle.getVersion();
+		cachedFile.setWritable(mode == 'w');	//set file to writable if client opened file for writing
+	}
+
+	//uploads the cached file to the server in chunks read straight from the cached file
+	//with several chunks in flight at once.
+	private boolean uploadChunked(CacheEntry entry) throws IOException {
+
+		try (FileChannel in = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+			TransferHandle handle = fileServer.openUpload(ipName, entry.name, in.size());
+			try {
+				transferChunks(handle, (offset, size) -> {
+					ByteBuffer buffer = ByteBuffer.allocate(size);
+					while (buffer.hasRemaining()) {
+						if (in.read(buffer, offset + buffer.position()) < 0) {
+							throw new EOFException("Cached file shrank during upload");
+						}
+					}
+					fileServer.writeChunk(handle.getId(), offset, wrap(buffer.array()));
+				});
+				return fileServer.commitUpload(handle.getId());
+			}
+			finally {
+				fileServer.closeTransfer(handle.getId());
+			}
+		}
+	}
+
+	//transfers one chunk of a chunked transfer
+	private interface ChunkTransfer {
+		void transfer(long offset, int size) throws IOException;
+	}
+
+	//runs a chunked transfer over the whole file, keeping up to TRANSFER_WINDOW chunks in flight.
+	private void transferChunks(TransferHandle handle, ChunkTransfer chunk) throws IOException {
+
+		ArrayDeque<Future<?>> inFlight = new ArrayDeque<Future<?>>();
+		try {
+			for (long offset = 0; offset < handle.getLength(); offset += handle.getChunkSize()) {
+				//wait for the oldest chunk once the window is full
+				if (inFlight.size() == TRANSFER_WINDOW) {
+					awaitChunk(inFlight.remove());
+				}
+				long chunkOffset = offset;
+				int size = (int) Math.min(handle.getChunkSize(), handle.getLength() - offset);
+				inFlight.add(transferPool.submit(() -> {
+					chunk.transfer(chunkOffset, size);
+					return null;
+				}));
+			}
+			while (!inFlight.isEmpty()) {
+				awaitChunk(inFlight.remove());
+			}
+		}
+		finally {
+			//stop any chunks still in flight after a failure
+			for (Future<?> pending : inFlight) {
+				pending.cancel(true);
+			}
+		}
+	}
+
+	//waits for a chunk to complete, rethrowing its failure
+	private void awaitChunk(Future<?> chunk) throws IOException {
 
-		//byte array to read file contents into that is the size of the currently cached file
-		byte[] data = new byte[(int) cachedFile.length()];
-		FileInputStream reader = new FileInputStream(cachedFile);
-		reader.read(data);
+		try {
+			chunk.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Chunked transfer interrupted");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Chunked transfer failed", e.getCause());
+		}
+	}
+
+	//returns the file contents of a cached file
+	private FileContents getFileContents(CacheEntry entry) throws FileNotFoundException, IOException {
+
+		//byte array to read file contents into that is the size of the cached file
+		byte[] data = new byte[(int) entry.file.length()];
+		try (DataInputStream reader = new DataInputStream(new FileInputStream(entry.file))) {
+			reader.readFully(data);
+		}
 		FileContents contents = new FileContents(data); //create FileContents object with contents of cached file
 		return contents;
 	}
 
-	//opens an emacs session for the client
+	//wraps contents for an upload, compressed if the server agreed to it
+	private FileContents wrap(byte[] data) {
+
+		return compressed ? FileContents.compressed(data, -1) : new FileContents(data);
+	}
+
+	//opens an emacs session for the client on the file last opened
 	public void runEmacs() {
 
 		System.out.println("Starting emacs session.");
         try {
-        	String[] command = new String[] {"emacs", localPath};
+        	String[] command = new String[] {"emacs", current.file.getPath()};
 	   	 	Runtime runtime = Runtime.getRuntime( );
 	    	Process process = runtime.exec( command );	//execute command 
 	    	process.waitFor();		//have process wait for emacs session to complete.  Necessary to have session complete before writeback, etc. 
@@ -141,48 +799,112 @@ public class FileClient extends UnicastRemoteObject implements ClientInterface {
     //completes the user editing session with the file
     public synchronized void completeSession() throws IOException {
 
+    	if (current == null) {
+    		return;		//no file was opened
+    	}
     	//ownership transer required - upload fie to server and change state
-		if (state == CacheState.RELEASE_OWNERSHIP) {	//state must have changed from write to release ownership during session
-			uploadFile();		//now that emacs session is completed, user required to upload file to server
-			state = CacheState.READ_SHARED;		//change state 
+		if (current.state == CacheState.RELEASE_OWNERSHIP) {	//state must have changed from write to release ownership during session
+			uploadFile(current);		//now that emacs session is completed, user required to upload file to server
+			current.state = CacheState.READ_SHARED;		//change state 
 		//user emacs session complete, file is now modified so set to modified owned
-		} else if (state == CacheState.WRITE_OWNED) {
-			state = CacheState.MODIFIED_OWNED;
+		} else if (current.state == CacheState.WRITE_OWNED) {
+			current.state = CacheState.MODIFIED_OWNED;
+		}
+	}
+
+	//writes back every modified file and releases all cached files, called when the client exits
+	public synchronized void close() throws IOException {
+
+		completeSession();
+		current = null;
+		if(predictor != null){
+			predictor.shutdownNow();
+		}
+		if(persistent){
+			keepEntries();
+		}
+		else{
+			evictEntries(0);
+		}
+		metrics.stop();
+	}
+
+	//writes back every modified file, releases all cached files and writes the index of the copies
+	//whose server version is known, for the next run to revalidate. other copies are deleted.
+	private void keepEntries() throws IOException {
+
+		StringBuilder index = new StringBuilder();
+		for(CacheEntry entry : entries.values()){
+			if(entry.state == CacheState.MODIFIED_OWNED || entry.state == CacheState.RELEASE_OWNERSHIP){
+				uploadFile(entry);
+			}
+			if(entry.version >= 0 && entry.file.exists()){
+				index.append(entry.version).append(' ').append(entry.file.length()).append(' ')
+					.append(entry.file.lastModified()).append(' ').append(entry.name).append('\n');
+			}
+			else{
+				entry.file.delete();
+			}
 		}
+		entries.clear();
+		fileServer.release(ipName, null);
+		File temp = new File(cacheDir, INDEX + ".write");
+		Files.write(temp.toPath(), index.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(temp.toPath(), new File(cacheDir, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING, 
+			StandardCopyOption.ATOMIC_MOVE);
 	}
 	
-	//invalidates the clients currently cached file - sets state to invalid.  called remotely by server
-	public synchronized boolean invalidate( ) throws RemoteException {
+	//invalidates a cached file - sets its state to invalid.  called remotely by server
+	public synchronized boolean invalidate(String filename) throws RemoteException {
 
 		 // set the DFS client’s file state to “Invalid”
-		if(state == CacheState.READ_SHARED){
-			state = CacheState.INVALID;
+		metrics.invalidations.increment();
+		CacheEntry entry = entries.get(filename);
+		if(entry != null && entry.state == CacheState.READ_SHARED){
+			entry.state = CacheState.INVALID;
 			return true;
 		}
 		return false;
 	}
 
-	//if there is an ownership change, the server calls this function to have the client write back its cached file contents
-    public synchronized boolean writeback( ) throws RemoteException {
+	//if there is an ownership change, the server calls this function to have the client write back a cached file's contents
+    public synchronized boolean writeback(String filename) throws RemoteException {
+    	metrics.writebacks.increment();
+    	CacheEntry entry = entries.get(filename);
+    	if(entry == null){
+    		return false;
+    	}
     	//transfer of ownership, change state to release ownership - file uploaded after emacs session
-    	if(state == CacheState.WRITE_OWNED){
-    		state = CacheState.RELEASE_OWNERSHIP;
+    	if(entry.state == CacheState.WRITE_OWNED){
+    		entry.state = CacheState.RELEASE_OWNERSHIP;
     		return true;
     	}
-    	else if(state == CacheState.MODIFIED_OWNED) {
+    	else if(entry.state == CacheState.RELEASE_OWNERSHIP){
+    		return true;	//already releasing after the current session
+    	}
+    	else if(entry.state == CacheState.MODIFIED_OWNED) {
+    		if(entry.writingBack){
+    			return true;	//already uploading, asking again does not upload it twice
+    		}
+    		entry.writingBack = true;
     		//cached file was modified but user's emacs session is complete so upload file to server now
     		//write back file - use seperate thread to avoid deadlock
     		(new Thread() {
     			public void run() {
+    				boolean uploaded = false;
     				try {
     					//upload file to server
-    					if(fileServer.upload(ipName, fileName, getFileContents())){
-    						state = CacheState.READ_SHARED;		//change state
-    					}
+    					uploaded = uploadFile(entry);
     				}
     				catch(IOException e){
     					e.printStackTrace();
     				}
+    				synchronized (FileClient.this) {
+    					entry.writingBack = false;
+    					if(uploaded){
+    						entry.state = CacheState.READ_SHARED;		//change state
+    					}
+    				}
     			}
     		}).start();
     		return true;
@@ -190,10 +912,54 @@ public class FileClient extends UnicastRemoteObject implements ClientInterface {
     	return false;
     }
 
+	//the server grants ownership of a file the client asked for.  called remotely by server
+	public synchronized boolean ownershipGranted(String filename) throws RemoteException {
+
+		CacheEntry entry = entries.get(filename);
+		if(entry == null){
+			return false;	//no longer wanted, the server passes ownership on
+		}
+		entry.granted = true;
+		notifyAll();
+		return true;
+	}
+
+	//the server locked a byte range the client asked for.  called remotely by server. returns false if
+	//the client no longer waits for it, the server then unlocks it
+	public boolean rangeGranted(String filename, long offset, long length) throws RemoteException {
+
+		String key = filename + ":" + offset + ":" + length;
+		synchronized(rangeWaits){
+			if(!rangeWaits.containsKey(key)){
+				return false;
+			}
+			rangeWaits.put(key, true);
+			rangeWaits.notifyAll();
+			return true;
+		}
+	}
+
+	//looks up the server at the given address, sending the hot calls to its NIO transport at the given
+	//port if dfs.transport=nio
+	private static ServerInterface connect(String host, int port, int nioPort) throws IOException {
+
+		ServerInterface fileServer;
+		try {
+			fileServer = (ServerInterface) Naming.lookup( "rmi://" + host + ":" + port + "/fileserver" );
+		}
+		catch(NotBoundException e){
+			throw new RemoteException("Server not bound at " + host + ":" + port, e);
+		}
+		if (System.getProperty("dfs.transport", "rmi").equals("nio")) {
+			fileServer = new NioServerStub(host, nioPort, fileServer);
+		}
+		return fileServer;
+	}
+
     //main function - connects to the FileServer, constructs a FileClient, and starts a session with the user
     //continuously asking them for the name of the file they want to open, and the mode they wish to open the
-    //file in, either (r/w) until the user wishes to end the session, at which time the cached file is uploaded
-    //back to the server.
+    //file in, either (r/w) until the user wishes to end the session, at which time the modified cached files are
+    //uploaded back to the server.
 	public static void main (String args[]) {
 
 		if ( args.length != 2 ) {
@@ -206,12 +972,54 @@ public class FileClient extends UnicastRemoteObject implements ClientInterface {
 			//look for the server instance that the client wants to access
 			String serverIp = args[0];
 			int port = Integer.parseInt(args[1]);
-			ServerInterface fileServer =  (ServerInterface) Naming.lookup( "rmi://" + serverIp + ":" + port + "/fileserver" );
+			//dfs.shards lists the host:port of every server of a sharded cluster, each file is sent to its shard
+			String shards = System.getProperty("dfs.shards");
+			ServerInterface fileServer;
+			FileClient[] bound = new FileClient[1];
+			if (shards != null && !shards.isEmpty()) {
+				fileServer = new ShardedServerStub(shards.split(","), shard -> {
+					int shardPort = Integer.parseInt(shard.substring(shard.lastIndexOf(':') + 1));
+					//each shard calls the client back through the registry at its own port
+					if (bound[0] != null) {
+						Naming.rebind("rmi://localhost:" + shardPort + "/fileclient", bound[0]);
+					}
+					return connect(shard.substring(0, shard.lastIndexOf(':')), shardPort, shardPort + 1);
+				});
+			} else {
+				fileServer = connect(serverIp, port, Integer.getInteger("dfs.nio.port", port + 1));
+			}
 
 			System.out.println("Starting client ...");
 		    FileClient client = new FileClient(fileServer);
+		    bound[0] = client;
 		    //bind client name to ip address
 		    Naming.rebind( "rmi://localhost:" + port + "/fileclient", client );
+		    if (fileServer instanceof ShardedServerStub) {
+		    	for (String shard : fileServer.getShards()) {
+		    		Naming.rebind("rmi://localhost:" + shard.substring(shard.lastIndexOf(':') + 1) + "/fileclient", client);
+		    	}
+		    }
+		    //dfs.replicas lists the host:port of read replicas of the server
+		    String replicas = System.getProperty("dfs.replicas");
+		    if (replicas != null && !replicas.isEmpty()) {
+		    	List<ReplicaInterface> stubs = new ArrayList<ReplicaInterface>();
+		    	for (String replica : replicas.split(",")) {
+		    		stubs.add((ReplicaInterface) Naming.lookup("rmi://" + replica + "/filereplica"));
+		    	}
+		    	client.useReplicas(stubs.toArray(new ReplicaInterface[0]));
+		    }
+		    //files kept from the last run are checked with the server in one batch
+		    try {
+		    	client.revalidate();
+		    } catch (IOException e) {
+		    	//they stay invalid and are downloaded when opened
+		    	System.err.println("Could not revalidate cached files: " + e);
+		    }
+		    //dfs.prefetch names files to cache at the start of the session, separated by commas
+		    String prefetch = System.getProperty("dfs.prefetch");
+		    if (prefetch != null && !prefetch.isEmpty()) {
+		    	client.prefetch(prefetch.split(","));
+		    }
 
 		    //to get user input
 		    Scanner input = new Scanner( System.in );		
@@ -222,8 +1030,7 @@ public class FileClient extends UnicastRemoteObject implements ClientInterface {
 				System.out.print("Do you want to exit? [y/n]: ");
 				if (input.next().equals("y")) {
 					System.out.println("Writing any changes ...");
-					client.writeback();
-					client.completeSession();
+					client.close();
 					System.out.println("DONE");
 					System.exit(0);
 				}
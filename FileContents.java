@@ -5,17 +5,163 @@
 */
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.zip.*;
 
 public class FileContents implements Serializable {
-    private byte[] contents;
+    private static final int COPY_SIZE = 64 * 1024;  //bytes serialized per copy out of a buffer
+    //smallest contents worth compressing, smaller files are sent as they are
+    public static final int COMPRESS_THRESHOLD = Integer.getInteger( "dfs.compress.threshold", 4096 );
+    public static final String DEFLATE = "deflate";  //the compressed wire format
+    private transient byte[] contents;
+    private transient ByteBuffer buffer;    //contents held in a buffer, possibly off heap
+    private transient long version = -1;    //server version of the contents, -1 if unknown
+    private transient boolean notModified;  //the client's copy is current, no contents sent
+    private transient long lease;           //milliseconds a read copy stays valid, 0 until called back
+    private transient byte[] deflated;      //compressed contents sent in place of the contents
     public FileContents( byte[] contents ) {
 	this.contents = contents;
     }
+    public FileContents( byte[] contents, long version ) {
+	this.contents = contents;
+	this.version = version;
+    }
+    //wraps the remaining bytes of a buffer without copying them, they are 
+    //serialized straight from the buffer
+    public FileContents( ByteBuffer buffer ) {
+	this.buffer = buffer.slice( );
+    }
+    public FileContents( ByteBuffer buffer, long version ) {
+	this.buffer = buffer.slice( );
+	this.version = version;
+    }
+    //reply to a conditional download whose cached copy is still current
+    public static FileContents notModified( long version ) {
+	FileContents reply = new FileContents( new byte[0], version );
+	reply.notModified = true;
+	return reply;
+    }
+    //contents that are sent compressed if that makes them smaller
+    public static FileContents compressed( byte[] contents, long version ) {
+	return compressed( ByteBuffer.wrap( contents ), version );
+    }
+    public static FileContents compressed( ByteBuffer buffer, long version ) {
+	return compressed( buffer, compress( buffer ), version );
+    }
+    //contents whose compressed form is already known, as cached by the 
+    //server for hot files, null if they are sent as they are
+    public static FileContents compressed( ByteBuffer buffer, byte[] deflated, 
+					   long version ) {
+	FileContents reply = new FileContents( buffer, version );
+	reply.deflated = deflated;
+	return reply;
+    }
+    //deflates the remaining bytes of a buffer, returns null if they are 
+    //under the threshold or do not get smaller
+    public static byte[] compress( ByteBuffer source ) {
+	if ( source.remaining( ) < COMPRESS_THRESHOLD )
+	    return null;
+	Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+	try {
+	    deflater.setInput( source.duplicate( ) );
+	    deflater.finish( );
+	    //anything not at least an eighth smaller goes out as it is
+	    int limit = source.remaining( ) - source.remaining( ) / 8;
+	    byte[] out = new byte[limit];
+	    int count = 0;
+	    while ( !deflater.finished( ) && count < limit )
+		count += deflater.deflate( out, count, limit - count );
+	    return deflater.finished( ) ? Arrays.copyOf( out, count ) : null;
+	} finally {
+	    deflater.end( );
+	}
+    }
+    public boolean isCompressed( ) {
+	return deflated != null;
+    }
+    public boolean isNotModified( ) {
+	return notModified;
+    }
+    public long getVersion( ) {
+	return version;
+    }
+    public long getLease( ) {
+	return lease;
+    }
+    public void setLease( long lease ) {
+	this.lease = lease;
+    }
     public void print( ) throws IOException {
 	System.out.println( "FileContents = " + contents );
     }
     public byte[] get( ) {
+	if ( contents == null ) {
+	    contents = new byte[buffer.remaining( )];
+	    buffer.duplicate( ).get( contents );
+	}
 	return contents;
     }
+    //returns a read only view of the contents without copying them
+    public ByteBuffer getBuffer( ) {
+	if ( buffer == null )
+	    buffer = ByteBuffer.wrap( contents );
+	return buffer.asReadOnlyBuffer( );
+    }
+    public int length( ) {
+	return contents != null ? contents.length : buffer.remaining( );
+    }
+    private void writeObject( ObjectOutputStream out ) throws IOException {
+	out.writeLong( version );
+	out.writeBoolean( notModified );
+	out.writeLong( lease );
+	out.writeInt( length( ) );
+	out.writeBoolean( deflated != null );
+	if ( deflated != null ) {
+	    out.writeInt( deflated.length );
+	    out.write( deflated );
+	    return;
+	}
+	if ( contents != null ) {
+	    out.write( contents );
+	    return;
+	}
+	//copy through a small scratch array rather than the whole contents
+	ByteBuffer source = buffer.duplicate( );
+	byte[] scratch = new byte[Math.min( COPY_SIZE, source.remaining( ) )];
+	while ( source.hasRemaining( ) ) {
+	    int count = Math.min( scratch.length, source.remaining( ) );
+	    source.get( scratch, 0, count );
+	    out.write( scratch, 0, count );
+	}
+    }
+    private void readObject( ObjectInputStream in ) throws IOException {
+	version = in.readLong( );
+	notModified = in.readBoolean( );
+	lease = in.readLong( );
+	contents = new byte[in.readInt( )];
+	if ( !in.readBoolean( ) ) {
+	    in.readFully( contents );
+	    return;
+	}
+	byte[] payload = new byte[in.readInt( )];
+	in.readFully( payload );
+	Inflater inflater = new Inflater( );
+	try {
+	    inflater.setInput( payload );
+	    int count = 0;
+	    while ( count < contents.length && !inflater.finished( ) ) {
+		int n = inflater.inflate( contents, count, contents.length - count );
+		if ( n == 0 && ( inflater.needsInput( ) || inflater.needsDictionary( ) ) )
+		    break;
+		count += n;
+	    }
+	    if ( count != contents.length )
+		throw new StreamCorruptedException( "compressed contents are truncated" );
+	} catch ( DataFormatException e ) {
+	    throw new StreamCorruptedException( "bad compressed contents: " + e.getMessage( ) );
+	} finally {
+	    inflater.end( );
+	}
+    }
 }
@@ -0,0 +1,51 @@
+/*
+*   @author Tiana Greisel and Garrett Singletary
+*   @title  CSS434 - Program 4 Distributed File System
+*   
+*/
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The new contents of a file expressed against the version the server
+ * holds, as a sequence of references to the server's blocks and 
+ * literal bytes the server does not have.
+ */
+public class FileDelta implements Serializable {
+    private byte[] baseDigest;      //digest of the version the delta applies to
+    private int blockSize;          //block size of the signature the delta was made from
+    private long length;            //length of the new contents
+    private int[] ops;              //block index if >= 0, otherwise -(literal index + 1)
+    private List<byte[]> literals;  //literal runs referenced by ops
+    public FileDelta( byte[] baseDigest, int blockSize, long length, 
+		      int[] ops, List<byte[]> literals ) {
+	this.baseDigest = baseDigest;
+	this.blockSize = blockSize;
+	this.length = length;
+	this.ops = ops;
+	this.literals = literals;
+    }
+    public byte[] getBaseDigest( ) {
+	return baseDigest;
+    }
+    public int getBlockSize( ) {
+	return blockSize;
+    }
+    public long getLength( ) {
+	return length;
+    }
+    public int[] getOps( ) {
+	return ops;
+    }
+    public List<byte[]> getLiterals( ) {
+	return literals;
+    }
+    //number of literal bytes the delta carries
+    public long literalBytes( ) {
+	long total = 0;
+	for ( byte[] literal : literals )
+	    total += literal.length;
+	return total;
+    }
+}
@@ -9,48 +9,371 @@ import java.rmi.server.*;
 import java.rmi.registry.*;
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileServer extends UnicastRemoteObject implements ServerInterface {
 
+	static final int CHUNK_SIZE = 1024 * 1024;				//largest chunk of a chunked transfer
+	static final long TRANSFER_TIMEOUT = 10 * 60 * 1000;	//idle time after which an abandoned transfer is closed
+	static final long HANDOFF_TIMEOUT = Long.getLong("dfs.shard.handoff", 30000);	//longest wait for the owner of a file moving to another shard
+	static final long HANDOFF_POLL = 1000;					//longest a handOff call waits, within the callback timeout
+	static final long TAKEOVER_TIMEOUT = Long.getLong("dfs.shard.takeover", 2 * HANDOFF_TIMEOUT);	//longest wait for the previous shard to hand a file off
+	static final long TAKEOVER_RETRY = 1000;				//longest pause between calls asking for a handoff
+
 	int port;												//port the server is bound too			
-	Vector<CachedFile> cache;								//vector of cached files	
+	ConcurrentHashMap<String, CachedFile> cache;			//cached files indexed by file name
+	ConcurrentHashMap<String, FutureTask<CachedFile>> loading;	//in-flight loads of files not yet cached
+	ConcurrentHashMap<String, Set<CachedFile>> readerIndex;	//files each client is registered with, by client name
+	FileCache memory;										//bounds the memory used by cached file data
+	CachedFile.Storage storage;								//where cached files keep their contents
+	AsyncFileWriter writer;									//writes uploaded contents to disk in the background
+	ServerMetrics metrics;									//counters and latencies, published over JMX
+	ClientStubCache stubs;									//proxies of clients, reused across downloads
+	ConcurrentHashMap<Long, Transfer> transfers;			//open chunked transfers by id
+	AtomicLong nextTransferId;								//id of the next chunked transfer
+	boolean compression;									//whether contents may be sent compressed
+	Set<String> compressing;								//clients that negotiated compressed contents
+	NioTransport transport;									//serves requests over NIO as well as RMI, null if it does not
+	String shard;											//host:port naming this server in its cluster, null if it is not sharded
+	volatile ShardRing ring;								//members of the cluster, null if the server is not sharded
+	volatile ShardRing previous;							//members before the last change of membership, null if none or handed off
+	volatile long previousUntil;							//System.currentTimeMillis() by which the previous members handed off their files
+	ConcurrentHashMap<String, ServerInterface> peers;		//stubs of the other shards by name
+	ConcurrentHashMap<String, CompletableFuture<Void>> retiring;	//in-flight handoffs of files that moved to other shards
+	ConcurrentHashMap<String, Set<String>> subscribers;		//replicas pushed each file's updates, by file name
+	ConcurrentHashMap<String, ReplicaInterface> replicas;	//stubs of the replicas by name
+	ExecutorService pusher;									//pushes updates to replicas in the order they were made
+	HotSet hotSet;											//files held in memory when the server last stopped
+	AccessPatterns patterns;								//which files clients open after which, to predict their next opens
 
 	//Constructor - constructs a FileServer object.  
 	public FileServer(int port) throws RemoteException {
 
 		//set the port the server is bound to
 		this.port = port;
-		//create the vector of cached files
-		cache = new Vector<CachedFile>();
+		//create the cached file index and the reverse client index
+		cache = new ConcurrentHashMap<String, CachedFile>();
+		loading = new ConcurrentHashMap<String, FutureTask<CachedFile>>();
+		readerIndex = new ConcurrentHashMap<String, Set<CachedFile>>();
+		memory = FileCache.fromProperties();
+		//dfs.storage=mapped keeps file contents off heap in memory mapped files, dfs.storage=dedup 
+		//keeps them on heap as chunks shared between files
+		storage = CachedFile.Storage.valueOf(System.getProperty("dfs.storage", "heap").toUpperCase());
+		stubs = new ClientStubCache(Integer.toString(port), Long.getLong("dfs.stub.ttl", 60000));
+		//uploads are journaled unless dfs.journal=false, each server of a shared tmp/ with a journal of its own
+		Journal journal = null;
+		if (Boolean.parseBoolean(System.getProperty("dfs.journal", "true"))) {
+			try {
+				journal = new Journal(new File(System.getProperty("dfs.journal.dir", "tmp/.journal/" + port)));
+			} catch (IOException e) {
+				throw new RemoteException("Could not open journal", e);
+			}
+		}
+		writer = new AsyncFileWriter(Integer.getInteger("dfs.writer.threads", 2), 
+			Integer.getInteger("dfs.writer.queue", 1024), journal);
+		transfers = new ConcurrentHashMap<Long, Transfer>();
+		metrics = new ServerMetrics(cache, memory, writer);
+		patterns = new AccessPatterns();
+		metrics.start(port);
+		nextTransferId = new AtomicLong();
+		compression = Boolean.parseBoolean(System.getProperty("dfs.compress", "true"));
+		compressing = ConcurrentHashMap.newKeySet();
+		peers = new ConcurrentHashMap<String, ServerInterface>();
+		retiring = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+		subscribers = new ConcurrentHashMap<String, Set<String>>();
+		replicas = new ConcurrentHashMap<String, ReplicaInterface>();
+		pusher = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "replica-push");
+			thread.setDaemon(true);
+			return thread;
+		});
+		hotSet = new HotSet(new File(System.getProperty("dfs.hotset", "tmp/.hotset/" + port)));
+	}
+
+	//method called remotely to agree on the format file contents are sent in.
+	public String negotiate(String client, String[] formats) throws RemoteException{
+
+		if (compression && Arrays.asList(formats).contains(FileContents.DEFLATE)) {
+			compressing.add(client);
+			return FileContents.DEFLATE;
+		}
+		compressing.remove(client);
+		return null;
 	}
 
 	//method called remotely to download a given file in a given mode.
 	public FileContents download(String clientIP, String filename, String mode) throws RemoteException{
 		
-		//remove all the readers for the given files reader list since ownership is changing and their cache will be invalidated
-		for (CachedFile file : cache) {
-			if (!file.getName().equals(filename))
-				file.removeReader(clientIP);
+		long start = System.nanoTime();
+		try {
+			CachedFile file = register(clientIP, filename, mode);
+			//return contents of the file
+			return withLease(file.getContents(compressing.contains(clientIP)));
+		} catch (IOException e) {
+			throw new RemoteException("Could not read file", e);
+		} finally {
+			metrics.downloads(mode).recordSince(start);
 		}
-		CachedFile file = getCachedFile(filename);
+	}
 
-        // If file is not cached, cache it
-		if (file == null) {
+	//method called remotely to download a given file in a given mode if it is newer than the client's version.
+	public FileContents downloadIfModified(String clientIP, String filename, String mode, long version) throws RemoteException{
+
+		long start = System.nanoTime();
+		try {
+			CachedFile file = register(clientIP, filename, mode);
+			if (file.getVersion() == version) {
+				return withLease(FileContents.notModified(version));
+			}
+			//return contents of the file
+			return withLease(file.getContents(compressing.contains(clientIP)));
+		} catch (IOException e) {
+			throw new RemoteException("Could not read file", e);
+		} finally {
+			metrics.downloads(mode).recordSince(start);
+		}
+	}
+
+	//method called remotely to start a chunked download of a given file in a given mode.
+	public TransferHandle openDownload(String clientIP, String filename, String mode) throws RemoteException{
+
+		long start = System.nanoTime();
+		try {
+			CachedFile file = register(clientIP, filename, mode);
+			Transfer transfer = Transfer.openDownload(nextTransferId.incrementAndGet(), file, clientIP);
+			return addTransfer(transfer);
+		} catch (IOException e) {
+			throw new RemoteException("Could not open file", e);
+		} finally {
+			metrics.downloads(mode).recordSince(start);
+		}
+	}
+
+	//method called remotely to start a chunked download of a given file in a given mode if it is 
+	//newer than the client's version, returns null if it is not.
+	public TransferHandle openDownloadIfModified(String clientIP, String filename, String mode, long version) throws RemoteException{
 
+		long start = System.nanoTime();
+		try {
+			CachedFile file = register(clientIP, filename, mode);
+			if (file.getVersion() == version) {
+				return null;
+			}
+			Transfer transfer = Transfer.openDownload(nextTransferId.incrementAndGet(), file, clientIP);
+			return addTransfer(transfer);
+		} catch (IOException e) {
+			throw new RemoteException("Could not open file", e);
+		} finally {
+			metrics.downloads(mode).recordSince(start);
+		}
+	}
+
+	//method called remotely to download several files in one call, each in its own mode. versions holds the
+	//client's version of each file, -1 if unknown, files whose version is unchanged come back notModified.
+	//files that cannot be opened come back null, the client can download them alone to find out why.
+	public FileContents[] downloadAll(String clientIP, String[] filenames, String[] modes, long[] versions) throws RemoteException{
+
+		if (modes.length != filenames.length || versions.length != filenames.length) {
+			throw new RemoteException("Batch download needs a mode and a version for each file");
+		}
+		//files of another shard fail the whole batch before any is registered, so the client resends them
+		for (String filename : filenames) {
+			checkShard(filename);
+		}
+		//looked up once for the whole batch
+		ClientProxy client = stubs.get(clientIP);
+		Set<CachedFile> held = getHeldFiles(clientIP);
+		boolean compress = compressing.contains(clientIP);
+		FileContents[] contents = new FileContents[filenames.length];
+		for (int i = 0; i < filenames.length; i++) {
+			long start = System.nanoTime();
 			try {
-				//create a new file
-				file = new CachedFile(filename);
+				CachedFile file = register(client, held, filenames[i], modes[i]);
+				if (file.getVersion() == versions[i]) {
+					contents[i] = withLease(FileContents.notModified(versions[i]));
+				} else {
+					contents[i] = withLease(file.getContents(compress));
+				}
 			} catch (IOException e) {
-				throw new RemoteException("Could not open file", e);
+				if (!isMissing(e)) {
+					//a load error is reported, a file that moved meanwhile is routed again
+					throw e instanceof RemoteException ? (RemoteException) e 
+						: new RemoteException("Could not open " + filenames[i], e);
+				}
+				contents[i] = null;
+			} finally {
+				metrics.downloads(modes[i]).recordSince(start);
 			}
-			//add the file to the cache
-			cache.add(file);
+		}
+		return contents;
+	}
+
+	/**
+	 * Whether a file failed to open because it does not exist
+	 */
+	private static boolean isMissing(Throwable e) {
+
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof FileNotFoundException || cause instanceof java.nio.file.NoSuchFileException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//method called remotely to warm a client's cache, downloading several files in read mode in one call.
+	public FileContents[] prefetch(String clientIP, String[] filenames, long[] versions) throws RemoteException{
+
+		String[] modes = new String[filenames.length];
+		Arrays.fill(modes, "r");
+		return downloadAll(clientIP, filenames, modes, versions);
+	}
+
+	//method called remotely to register a read whose contents the client gets from a replica.
+	public FileContents validate(String clientIP, String filename) throws RemoteException{
+
+		long start = System.nanoTime();
+		try {
+			CachedFile file = register(clientIP, filename, "r");
+			return withLease(FileContents.notModified(file.getVersion()));
+		} finally {
+			metrics.validations.recordSince(start);
+		}
+	}
+
+	//method called remotely by a replica to copy a file and be pushed its updates.
+	public FileContents subscribe(String replica, String filename) throws RemoteException{
+
+		checkShard(filename);
+		CachedFile file;
+		try {
+			file = getCachedFile(filename);
+		} catch (IOException e) {
+			throw new RemoteException("Could not open file", e);
+		}
+		//subscribed before the contents are read, so no update falls between them
+		subscribers.computeIfAbsent(filename, name -> ConcurrentHashMap.newKeySet()).add(replica);
+		try {
+			return file.getContents(compression);
+		} catch (IOException e) {
+			throw new RemoteException("Could not read file", e);
+		}
+	}
+
+	/**
+	 * Pushes a file's contents to the replicas subscribed to it after an
+	 * update, in the background. Updates made in quick succession may be
+	 * pushed once, with the latest contents. Returns whether the file was
+	 * updated.
+	 */
+	private boolean publish(CachedFile file, boolean updated) {
+
+		Set<String> subscribed = subscribers.get(file.getName());
+		if (!updated || subscribed == null || subscribed.isEmpty()) {
+			return updated;
+		}
+		pusher.execute(() -> {
+			FileContents contents;
+			try {
+				contents = file.getContents(compression);
+			} catch (IOException e) {
+				System.err.println("Could not read " + file.getName() + " for replicas: " + e);
+				return;
+			}
+			for (String replica : subscribed) {
+				long start = System.nanoTime();
+				try {
+					if (!replica(replica).push(file.getName(), contents)) {
+						subscribed.remove(replica);
+					}
+					metrics.pushes.recordSince(start);
+				} catch (RemoteException e) {
+					//the replica copies the file again when it is next read
+					System.err.println("Push of " + file.getName() + " to " + replica + " failed: " + e);
+					metrics.pushFailures.increment();
+					subscribed.remove(replica);
+					replicas.remove(replica);
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Returns the stub of a replica, looking it up on first use
+	 */
+	private ReplicaInterface replica(String name) throws RemoteException {
+
+		ReplicaInterface replica = replicas.get(name);
+		if (replica == null) {
+			try {
+				replica = (ReplicaInterface) Naming.lookup("rmi://" + name + "/filereplica");
+			} catch (NotBoundException | MalformedURLException e) {
+				throw new RemoteException("Replica not bound: " + name, e);
+			}
+			replicas.put(name, replica);
+		}
+		return replica;
+	}
+
+	/**
+	 * Registers a client like downloadIfModified and returns the file's
+	 * contents for the NIO transport to send, null if the client's 
+	 * version is current. The caller closes the body.
+	 */
+	FileBody downloadBody(String clientIP, String filename, String mode, long version) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			CachedFile file = register(clientIP, filename, mode);
+			if (file.getVersion() == version) {
+				return null;
+			}
+			return file.openBody();
+		} finally {
+			metrics.downloads(mode).recordSince(start);
+		}
+	}
+
+	/**
+	 * Tells the client how long a read copy stays valid, when the server
+	 * runs with read leases
+	 */
+	private FileContents withLease(FileContents contents) {
+
+		contents.setLease(CachedFile.LEASE_DURATION);
+		return contents;
+	}
+
+	/**
+	 * Registers a client as a reader or writer of a file, caching 
+	 * the file if it is not already cached
+	 */
+	private CachedFile register(String clientIP, String filename, String mode) throws RemoteException{
+
+		return register(stubs.get(clientIP), getHeldFiles(clientIP), filename, mode);
+	}
+
+	/**
+	 * As above, for a client whose proxy and held files were already 
+	 * looked up
+	 */
+	private CachedFile register(ClientProxy client, Set<CachedFile> held, String filename, String mode) throws RemoteException{
+
+		checkShard(filename);
+        // Get the file, caching it if it is not already cached
+		CachedFile file;
+		try {
+			file = getCachedFile(filename);
+		} catch (IOException e) {
+			throw new RemoteException("Could not open file", e);
 		}
         // Regiser client for access to this file.
 		try {
 
-			ClientProxy client = new ClientProxy(clientIP, Integer.toString(port));
 			if (mode.equals("r")) {
 				//register the client as a reader
 				file.registerReader(client);
@@ -58,8 +381,14 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 				//add client as a writer (owner)
 				file.addWriter(client);
 			}
-			//return contents of the file
-			return file.getContents();
+			//remember the file so the client's registration can be dropped when it releases the file
+			held.add(file);
+			if (!serves(filename)) {
+				//the file moved while the client registered, a handoff already under way may have missed it
+				forget(client, held, file);
+				checkShard(filename);
+			}
+			return file;
 		} catch (IllegalArgumentException e) {
 			throw new RemoteException("Invalid request", e);
 		}
@@ -71,23 +400,846 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 	public boolean upload( String client, String filename, FileContents contents ) throws RemoteException{
 		
 		//get the file to be uploaded and update it
-		CachedFile file = getCachedFile(filename);
-		return file.update(client, contents);
+		CachedFile file = cache.get(filename);
+		if (file == null) {
+			return false;		//file was never downloaded, so the client cannot own it
+		}
+		long start = System.nanoTime();
+		try {
+			return publish(file, file.update(client, contents));
+		} finally {
+			metrics.uploads.recordSince(start);
+		}
+	}
+
+	//method called remotely to queue a client for ownership of a file. Returns whether ownership was
+	//granted at once, otherwise the client is called back when it is granted.
+	public boolean requestOwnership(String clientIP, String filename) throws RemoteException{
+
+		checkShard(filename);
+		CachedFile file;
+		try {
+			file = getCachedFile(filename);
+		} catch (IOException e) {
+			throw new RemoteException("Could not open file", e);
+		}
+		ClientProxy client = stubs.get(clientIP);
+		Set<CachedFile> held = getHeldFiles(clientIP);
+		held.add(file);
+		CompletableFuture<Void> granted = file.requestOwnership(client);
+		if (!serves(filename)) {
+			forget(client, held, file);
+			checkShard(filename);
+		}
+		if (granted.isDone()) {
+			try {
+				granted.join();
+			} catch (CompletionException e) {
+				throw wrongShard(filename, e);
+			}
+			return true;
+		}
+		granted.thenRunAsync(() -> {
+			//not run when the request failed, its client asks again when its wait runs out
+			boolean accepted;
+			try {
+				accepted = client.ownershipGranted(filename);
+			} catch (RemoteException e) {
+				accepted = false;
+			}
+			if (!accepted) {
+				//the client is gone or no longer wants the file, pass ownership on
+				file.abandonOwnership(client);
+			}
+		}, CachedFile.callbacks);
+		return false;
+	}
+
+	//method called remotely to lock a byte range of a file for writing. Returns whether it was locked at
+	//once, otherwise the client is called back when it is, unless it was not within CachedFile.RANGE_WAIT.
+	public boolean lockRange(String clientIP, String filename, long offset, long length) throws RemoteException{
+
+		if (offset < 0 || length <= 0) {
+			throw new RemoteException("Invalid range");
+		}
+		checkShard(filename);
+		CachedFile file;
+		try {
+			file = getCachedFile(filename);
+		} catch (IOException e) {
+			throw new RemoteException("Could not open file", e);
+		}
+		ClientProxy client = stubs.get(clientIP);
+		Set<CachedFile> held = getHeldFiles(clientIP);
+		held.add(file);
+		CompletableFuture<Void> locked = file.lockRange(client, offset, length, CachedFile.RANGE_WAIT);
+		if (!serves(filename)) {
+			forget(client, held, file);
+			checkShard(filename);
+		}
+		if (locked.isDone()) {
+			try {
+				locked.join();
+			} catch (CompletionException e) {
+				throw wrongShard(filename, e);
+			}
+			return true;
+		}
+		locked.thenRunAsync(() -> {
+			//not run when the request timed out or the file moved, the client stops waiting by itself
+			boolean accepted;
+			try {
+				accepted = client.rangeGranted(filename, offset, length);
+			} catch (RemoteException e) {
+				accepted = false;
+			}
+			if (!accepted) {
+				//the client is gone or gave up waiting, let the others have the range
+				file.unlockRange(clientIP, offset, length);
+			}
+		}, CachedFile.callbacks);
+		return false;
+	}
+
+	/** 
+	 * Writes contents into a byte range of a file the client locked
+	 */
+	public boolean uploadRange(String client, String filename, long offset, FileContents contents) throws RemoteException{
+
+		CachedFile file = cache.get(filename);
+		if (file == null) {
+			return false;		//file was never locked, so the client holds no range of it
+		}
+		long start = System.nanoTime();
+		try {
+			return publish(file, file.updateRange(client, offset, contents));
+		} catch (IOException e) {
+			throw new RemoteException("Could not write range", e);
+		} finally {
+			metrics.rangeUploads.recordSince(start);
+		}
+	}
+
+	//method called remotely to unlock the client's ranges of a file within the given range.
+	public void unlockRange(String client, String filename, long offset, long length) throws RemoteException{
+
+		CachedFile file = cache.get(filename);
+		if (file != null) {
+			file.unlockRange(client, offset, length);
+		}
+	}
+
+	/**
+	 * Reports the files clients are waiting to own, with the depth of 
+	 * their writer queues and how long writers have waited
+	 */
+	public String getOwnershipReport() {
+
+		StringBuilder report = new StringBuilder();
+		for (CachedFile file : cache.values()) {
+			int depth = file.getWriterQueueDepth();
+			if (depth > 0 || file.getMaxOwnershipWait() > 0) {
+				report.append(String.format("%s owner=%s queued=%d avgWait=%.1fms maxWait=%.1fms%n", 
+					file.getName(), file.getOwnerName(), depth, 
+					file.getAverageOwnershipWait(), file.getMaxOwnershipWait()));
+			}
+		}
+		return report.toString();
+	}
+
+	//method called remotely after a client opened a file, to learn which file it opens after which and
+	//return the files it is likely to open next that fit in the given number of bytes.
+	public String[] predictNext(String client, String previous, String filename, long budget) throws RemoteException{
+
+		checkShard(filename);
+		if (patterns.record(client, previous, filename)) {
+			metrics.transitions.increment();
+		}
+		List<String> likely = new ArrayList<String>();
+		for (String next : patterns.predict(client, filename)) {
+			if (!serves(next)) {
+				continue;		//another shard's, the client would be redirected
+			}
+			CachedFile cached = cache.get(next);
+			long length = cached != null ? cached.length() : new File("tmp/" + next).length();
+			if (length > budget || (cached == null && length == 0)) {
+				continue;		//too large for what is left, or gone
+			}
+			budget -= length;
+			likely.add(next);
+		}
+		metrics.predictions.add(likely.size());
+		return likely.toArray(new String[0]);
+	}
+
+	//method called remotely when a client stops caching a file, or all its files if filename is null.
+	public void release(String client, String filename) throws RemoteException{
+
+		if (filename == null) {
+			compressing.remove(client);
+			patterns.forget(client);
+		}
+		Set<CachedFile> held = readerIndex.get(client);
+		if (held == null) {
+			return;
+		}
+		Iterator<CachedFile> it = held.iterator();
+		while (it.hasNext()) {
+			CachedFile file = it.next();
+			if (filename == null || file.getName().equals(filename)) {
+				file.removeReader(client);
+				file.unlockRanges(client);
+				it.remove();
+			}
+		}
+	}
+
+	//method called remotely to get the block checksums of a file, null if the file cannot take a delta upload.
+	public BlockSignature getSignature(String client, String filename) throws RemoteException{
+
+		CachedFile file = cache.get(filename);
+		try {
+			return file == null ? null : file.getSignature();
+		} catch (IOException e) {
+			throw new RemoteException("Could not read file", e);
+		}
+	}
+
+	/** 
+	 * Updates the contents of a file on client request from a delta 
+	 * against the file's current contents
+	 */
+	public boolean uploadDelta(String client, String filename, FileDelta delta) throws RemoteException{
+
+		CachedFile file = cache.get(filename);
+		if (file == null) {
+			return false;
+		}
+		long start = System.nanoTime();
+		try {
+			return publish(file, file.update(client, delta));
+		} catch (IOException e) {
+			throw new RemoteException("Could not apply delta", e);
+		} finally {
+			metrics.deltaUploads.recordSince(start);
+		}
+	}
+
+	//method called remotely to start a chunked upload of a given length to a given file.
+	public TransferHandle openUpload(String client, String filename, long length) throws RemoteException{
+
+		CachedFile file = cache.get(filename);
+		if (file == null) {
+			throw new RemoteException("File is not cached: " + filename);
+		}
+		if (!file.isOwnedBy(client)) {
+			//as for upload, only the owner writes the file, checked before anything is staged
+			throw new RemoteException("Client does not own " + filename);
+		}
+		try {
+			Transfer transfer = Transfer.openUpload(nextTransferId.incrementAndGet(), file, client, length);
+			return addTransfer(transfer);
+		} catch (IOException e) {
+			throw new RemoteException("Could not stage upload", e);
+		}
+	}
+
+	//method called remotely to read a chunk of a chunked download.
+	public FileContents readChunk(long transfer, long offset, int length) throws RemoteException{
+
+		Transfer download = getTransfer(transfer);
+		try {
+			ByteBuffer chunk = download.read(offset, Math.min(length, CHUNK_SIZE));
+			if (compressing.contains(download.getClient())) {
+				return FileContents.compressed(chunk, -1);
+			}
+			return new FileContents(chunk);
+		} catch (IOException e) {
+			throw new RemoteException("Could not read chunk", e);
+		}
+	}
+
+	//method called remotely to write a chunk of a chunked upload.
+	public boolean writeChunk(long transfer, long offset, FileContents chunk) throws RemoteException{
+
+		try {
+			getTransfer(transfer).write(offset, chunk.get());
+			return true;
+		} catch (IOException e) {
+			throw new RemoteException("Could not write chunk", e);
+		}
+	}
+
+	//method called remotely to complete a chunked upload, updating the file with the uploaded contents.
+	public boolean commitUpload(long transfer) throws RemoteException{
+
+		Transfer upload = getTransfer(transfer);
+		long start = System.nanoTime();
+		try {
+			return publish(upload.getFile(), upload.commit());
+		} catch (IOException e) {
+			throw new RemoteException("Could not commit upload", e);
+		} finally {
+			metrics.chunkedUploads.recordSince(start);
+			closeTransfer(transfer);
+		}
+	}
+
+	//method called remotely to release a chunked transfer.
+	public void closeTransfer(long transfer) throws RemoteException{
+
+		Transfer removed = transfers.remove(transfer);
+		if (removed != null) {
+			removed.close();
+		}
+	}
+
+	/**
+	 * Registers an opened transfer and returns its handle. Transfers 
+	 * abandoned by their clients are closed here as well.
+	 */
+	private TransferHandle addTransfer(Transfer transfer) {
+
+		long now = System.currentTimeMillis();
+		for (Transfer open : transfers.values()) {
+			if (now - open.getLastAccess() > TRANSFER_TIMEOUT && transfers.remove(open.getId(), open)) {
+				open.close();
+			}
+		}
+		transfers.put(transfer.getId(), transfer);
+		return new TransferHandle(transfer.getId(), transfer.getLength(), CHUNK_SIZE, transfer.getVersion(), 
+			CachedFile.LEASE_DURATION);
+	}
+
+	/**
+	 * Looks up an open transfer by id
+	 */
+	Transfer getTransfer(long transfer) throws RemoteException {
+
+		Transfer open = transfers.get(transfer);
+		if (open == null) {
+			throw new RemoteException("No such transfer: " + transfer);
+		}
+		return open;
 	}
 
 	/**
 	 * Searches the cache for a file. If the file is cached, it is 
 	 * returned, if not, a new cache entry is created for the file.
+	 * 
+	 * Concurrent misses on the same file share a single load from disk.
 	 */
-	private CachedFile getCachedFile(String filename){
+	private CachedFile getCachedFile(String filename) throws IOException {
 		
 		//look for file with filename and return it
-		for(CachedFile file : cache){
-			if(file.getName().equals(filename)){
-				return file;
+		CachedFile file = cache.get(filename);
+		if (file != null) {
+			return file;
+		}
+		//file not cached, load it unless another thread is already loading it
+		FutureTask<CachedFile> load = new FutureTask<CachedFile>(() -> {
+			//check again in case a load finished between the lookup and claiming this one
+			CachedFile cached = cache.get(filename);
+			if (cached != null) {
+				return cached;
+			}
+			takeOver(filename);
+			CachedFile loaded = new CachedFile(filename, memory, storage, writer, metrics);
+			//warmUp may have indexed the file meanwhile, clients may already be registered with that one
+			CachedFile indexed = cache.putIfAbsent(filename, loaded);
+			if (indexed != null) {
+				loaded.evict();
+				memory.unloaded(loaded);
+				return indexed;
+			}
+			return loaded;
+		});
+		FutureTask<CachedFile> inFlight = loading.putIfAbsent(filename, load);
+		if (inFlight == null) {
+			//the claimed load always runs, threads that found it in loading are waiting for it
+			inFlight = load;
+			try {
+				load.run();
+			} finally {
+				loading.remove(filename, load);
+			}
+		}
+		return waitForLoad(inFlight);
+	}
+
+	/**
+	 * Waits for a file load to complete and returns the loaded file.
+	 * An interrupted wait gives up, the load goes on for the others.
+	 */
+	private CachedFile waitForLoad(FutureTask<CachedFile> load) throws IOException {
+
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a file to load");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not load file", e.getCause());
+		}
+	}
+
+	/**
+	 * Undoes a client's registration with a file and hands the file off
+	 * again, for a registration that raced with the file moving to 
+	 * another shard
+	 */
+	private void forget(ClientProxy client, Set<CachedFile> held, CachedFile file) {
+
+		held.remove(file);
+		file.removeReader(client.getName());
+		file.abandonOwnership(client);
+		file.unlockRanges(client.getName());
+		retire(file.getName());
+	}
+
+	/**
+	 * Returns the set of files the client is registered with, creating it on first use.
+	 */
+	private Set<CachedFile> getHeldFiles(String clientName) {
+
+		return readerIndex.computeIfAbsent(clientName, name -> ConcurrentHashMap.newKeySet());
+	}
+
+	/**
+	 * Whether this server serves the given file, which it does unless it
+	 * is sharded and the file belongs to another shard
+	 */
+	private boolean serves(String filename) {
+
+		ShardRing current = ring;
+		return current == null || current.owner(filename).equals(shard);
+	}
+
+	/**
+	 * Throws WrongShardException if the given file belongs to another shard
+	 */
+	private void checkShard(String filename) throws WrongShardException {
+
+		ShardRing current = ring;
+		if (current != null && !current.owner(filename).equals(shard)) {
+			metrics.redirects.increment();
+			throw new WrongShardException(filename + " belongs to shard " + current.owner(filename), 
+				current.getShards().toArray(new String[0]));
+		}
+	}
+
+	/**
+	 * Returns the exception a client is answered with when its queued 
+	 * request for a file failed, such as because the file moved to 
+	 * another shard
+	 */
+	private RemoteException wrongShard(String filename, Throwable e) {
+
+		WrongShardException moved = WrongShardException.find(e);
+		if (moved != null) {
+			metrics.redirects.increment();
+			return moved;
+		}
+		return new RemoteException("Request for " + filename + " failed", e.getCause());
+	}
+
+	//method called remotely to get the members of the server's cluster, null if it is not sharded.
+	public String[] getShards() throws RemoteException{
+
+		ShardRing current = ring;
+		return current == null ? null : current.getShards().toArray(new String[0]);
+	}
+
+	//method called remotely to change the members of the cluster. The change is passed on to the other 
+	//members, old and new, and the cached files that now belong to other shards are handed off.
+	public void setShards(String[] shards) throws RemoteException{
+
+		if (shard == null) {
+			throw new RemoteException("Server is not sharded");
+		}
+		ShardRing before;
+		ShardRing after;
+		synchronized (peers) {
+			before = ring;
+			if (before.hasShards(shards)) {
+				return;		//already changed, the members it was passed to pass it no further
+			}
+			after = new ShardRing(shards);
+			//the previous members hand off their files when told of the change, each within the takeover timeout
+			previousUntil = System.currentTimeMillis() + TAKEOVER_TIMEOUT;
+			previous = before;
+			ring = after;
+		}
+		System.out.println("Shards changed to " + after);
+		Set<String> members = new TreeSet<String>(before.getShards());
+		members.addAll(after.getShards());
+		members.remove(shard);
+		for (String member : members) {
+			try {
+				peer(member).setShards(shards);
+			} catch (RemoteException e) {
+				peers.remove(member);
+				System.err.println("Could not pass the change of shards on to " + member + ": " + e);
+			}
+		}
+		for (String filename : cache.keySet()) {
+			if (!serves(filename)) {
+				retire(filename);
+			}
+		}
+	}
+
+	//method called remotely by the shard a file moved to, before it loads the file. Returns whether this
+	//server's state of the file is gone, the caller calls again until it is.
+	public boolean handOff(String filename, String[] shards) throws RemoteException{
+
+		setShards(shards);
+		if (serves(filename)) {
+			return true;		//not moving away from this server
+		}
+		try {
+			retire(filename).get(HANDOFF_POLL, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted handing off " + filename);
+		} catch (ExecutionException e) {
+			throw new RemoteException("Could not hand off " + filename, e.getCause());
+		}
+	}
+
+	/**
+	 * Hands off a file that belongs to another shard in the background,
+	 * returning the handoff already under way if there is one
+	 */
+	private CompletableFuture<Void> retire(String filename) {
+
+		CompletableFuture<Void> handoff = retiring.get(filename);
+		if (handoff != null) {
+			return handoff;
+		}
+		CompletableFuture<Void> started = new CompletableFuture<Void>();
+		handoff = retiring.putIfAbsent(filename, started);
+		if (handoff != null) {
+			return handoff;
+		}
+		CachedFile.callbacks.execute(() -> {
+			try {
+				handOffFile(filename);
+				retiring.remove(filename, started);
+				started.complete(null);
+			} catch (Exception e) {
+				retiring.remove(filename, started);
+				started.completeExceptionally(e);
+			}
+		});
+		return started;
+	}
+
+	/**
+	 * Ends the server's readers and ownership of a cached file that 
+	 * moved to another shard, waits until its updates are on disk for 
+	 * the new shard to load, and drops it from the cache
+	 */
+	private void handOffFile(String filename) throws InterruptedException {
+
+		CachedFile file = cache.get(filename);
+		if (file == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		file.handOff(HANDOFF_TIMEOUT, ring.getShards().toArray(new String[0]));
+		writer.flush();
+		cache.remove(filename, file);
+		subscribers.remove(filename);
+		for (Set<CachedFile> held : readerIndex.values()) {
+			held.remove(file);
+		}
+		file.evict();
+		memory.unloaded(file);
+		metrics.handoffs.recordSince(start);
+	}
+
+	/**
+	 * Has the shard that served a file before the last change of members 
+	 * hand it off before this server loads it, so the load reads what the
+	 * file's owner wrote back, and no client keeps a copy that would not
+	 * be invalidated
+	 */
+	private void takeOver(String filename) throws IOException {
+
+		ShardRing before = previousShards();
+		ShardRing current = ring;
+		if (before == null || current == null || before.owner(filename).equals(shard)) {
+			return;
+		}
+		String from = before.owner(filename);
+		String[] members = current.getShards().toArray(new String[0]);
+		long deadline = System.currentTimeMillis() + TAKEOVER_TIMEOUT;
+		long pause = 50;
+		try {
+			while (!peer(from).handOff(filename, members)) {
+				//the owner is still writing the file back
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new IOException("Timed out waiting for " + from + " to hand off " + filename);
+				}
+				Thread.sleep(Math.min(pause, remaining));
+				pause = Math.min(pause * 2, TAKEOVER_RETRY);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted taking " + filename + " over from " + from);
+		} catch (RemoteException e) {
+			//a shard that left and stopped has nothing to hand off
+			peers.remove(from);
+			System.err.println("Could not take " + filename + " over from " + from + ": " + e);
+		}
+	}
+
+	/**
+	 * Returns the members before the last change of membership, or null 
+	 * once they had the time to hand off every file they served, after 
+	 * which no file needs taking over
+	 */
+	private ShardRing previousShards() {
+
+		ShardRing before = previous;
+		if (before != null && System.currentTimeMillis() - previousUntil > 0) {
+			synchronized (peers) {
+				if (previous == before) {
+					previous = null;
+				}
+			}
+			return null;
+		}
+		return before;
+	}
+
+	/**
+	 * Returns the stub of another shard, looking it up on first use
+	 */
+	private ServerInterface peer(String member) throws RemoteException {
+
+		ServerInterface peer = peers.get(member);
+		if (peer == null) {
+			try {
+				peer = (ServerInterface) Naming.lookup("rmi://" + member + "/fileserver");
+			} catch (NotBoundException | MalformedURLException e) {
+				throw new RemoteException("Shard not bound: " + member, e);
+			}
+			peers.put(member, peer);
+		}
+		return peer;
+	}
+
+	/**
+	 * Makes this server the named member of a cluster of the given 
+	 * shards and tells the other members. Joining a running cluster, it
+	 * has each file it takes over handed off when it first serves it. 
+	 * Servers starting a cluster together take nothing over.
+	 */
+	public void startSharding(String name, String[] shards) {
+
+		ShardRing joined = new ShardRing(shards);
+		if (!joined.getShards().contains(name)) {
+			throw new IllegalArgumentException("Shards do not include " + name);
+		}
+		shard = name;
+		//a member already serving without this server had the files it takes over, members that 
+		//are not up yet or already list it start the cluster together with it and hand off nothing
+		for (String member : joined.getShards()) {
+			if (member.equals(name)) {
+				continue;
+			}
+			try {
+				String[] current = peer(member).getShards();
+				if (current != null && !Arrays.asList(current).contains(name)) {
+					previousUntil = System.currentTimeMillis() + TAKEOVER_TIMEOUT;
+					previous = new ShardRing(current);
+					break;
+				}
+			} catch (RemoteException e) {
+				peers.remove(member);		//not started yet
+			}
+		}
+		ring = joined;
+		for (String member : joined.getShards()) {
+			if (!member.equals(name)) {
+				try {
+					peer(member).setShards(shards);
+				} catch (RemoteException e) {
+					System.err.println("Could not tell shard " + member + " of joining: " + e);
+				}
 			}
 		}
-		return null;		
+	}
+
+	/**
+	 * Removes this server from its cluster, waiting until the files it
+	 * served are handed off to the remaining shards
+	 */
+	public void leaveCluster() throws RemoteException {
+
+		ShardRing current = ring;
+		if (current == null || current.getShards().size() < 2) {
+			return;
+		}
+		setShards(current.without(shard).getShards().toArray(new String[0]));
+		for (CompletableFuture<Void> handoff : retiring.values()) {
+			try {
+				handoff.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				System.err.println("Handoff failed: " + e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Starts serving downloads, uploads, ownership requests and releases
+	 * over the NIO transport on the given port, besides RMI
+	 */
+	public void startNioTransport(int nioPort) throws IOException {
+
+		transport = new NioTransport(this, nioPort);
+	}
+
+	/**
+	 * Getter for the server's counters and latencies
+	 */
+	public ServerMetrics getMetrics() {
+
+		return metrics;
+	}
+
+	/**
+	 * Getter for the cache bounding the memory used by cached file data, 
+	 * which also keeps its hit and miss statistics
+	 */
+	public FileCache getFileCache() {
+
+		return memory;
+	}
+
+	/**
+	 * Waits until every upload accepted so far has been written to disk
+	 */
+	public void flush() throws InterruptedException {
+
+		writer.flush();
+	}
+
+	/**
+	 * Writes any pending uploads to disk, stops the background writer
+	 * and saves the files held in memory to the hot set manifest
+	 */
+	public void shutdown() throws InterruptedException {
+
+		if (transport != null) {
+			transport.close();
+		}
+		pusher.shutdown();
+		metrics.stop();
+		writer.close();
+		//saved once written, so the lengths and times match the versions
+		List<CachedFile> hottest = new ArrayList<CachedFile>();
+		for (String filename : memory.getHottest()) {
+			CachedFile file = cache.get(filename);
+			if (file != null) {
+				hottest.add(file);
+			}
+		}
+		try {
+			hotSet.save(hottest);
+		} catch (IOException e) {
+			System.err.println("Could not save hot set: " + e);
+		}
+	}
+
+	/**
+	 * Caches every file under tmp/ without reading its contents, listing
+	 * directories and reading file sizes on dfs.index.threads threads,
+	 * then reads the files of the hot set manifest into memory, hottest
+	 * first, until the memory budget is full. Files first requested
+	 * meanwhile are loaded as usual.
+	 */
+	public void warmUp() throws IOException, InterruptedException {
+
+		long start = System.nanoTime();
+		HashMap<String, HotSet.Entry> hot = new LinkedHashMap<String, HotSet.Entry>();
+		for (HotSet.Entry entry : hotSet.load()) {
+			hot.put(entry.name, entry);
+		}
+		ForkJoinPool indexer = new ForkJoinPool(Integer.getInteger("dfs.index.threads", 
+			Runtime.getRuntime().availableProcessors()));
+		AtomicLong indexed = new AtomicLong();
+		try {
+			indexer.submit(() -> indexDirectory(new File("tmp"), "", hot, indexed)).get();
+		} catch (ExecutionException e) {
+			throw new IOException("Could not index files", e.getCause());
+		} finally {
+			indexer.shutdown();
+		}
+		long indexTime = (System.nanoTime() - start) / 1000000;
+		int preloaded = 0;
+		for (HotSet.Entry entry : hot.values()) {
+			CachedFile file = cache.get(entry.name);
+			if (file == null || memory.getUsed() + file.length() > memory.getCapacity()) {
+				continue;
+			}
+			try {
+				file.preload();
+				preloaded++;
+			} catch (IOException e) {
+				System.err.println("Could not preload " + entry.name + ": " + e);
+			}
+		}
+		System.out.println("Indexed " + indexed.get() + " files in " + indexTime + "ms, preloaded " 
+			+ preloaded + " of " + hot.size() + " hot files in " + (System.nanoTime() - start) / 1000000 + "ms");
+	}
+
+	/*
+	 * Caches the files of a directory and, in parallel, of its
+	 * subdirectories. Names starting with a dot are the server's own
+	 * journal, manifest and staging files and are skipped.
+	 */
+	private void indexDirectory(File directory, String prefix, Map<String, HotSet.Entry> hot, AtomicLong indexed) {
+
+		File[] children = directory.listFiles((parent, name) -> !name.startsWith("."));
+		if (children == null) {
+			return;
+		}
+		Arrays.stream(children).parallel().forEach(child -> {
+			String filename = prefix + child.getName();
+			if (child.isDirectory()) {
+				indexDirectory(child, filename + "/", hot, indexed);
+				return;
+			}
+			//files that moved to this shard from another in the last change of membership are taken 
+			//over when first requested, a cluster started together has no previous membership
+			ShardRing before = previousShards();
+			if (cache.containsKey(filename) || !serves(filename) 
+					|| (before != null && !before.owner(filename).equals(shard))) {
+				return;
+			}
+			HotSet.Entry entry = hot.get(filename);
+			long version = entry != null && entry.matches(child) ? entry.version : 0;
+			try {
+				if (cache.putIfAbsent(filename, new CachedFile(filename, memory, storage, writer, metrics, version)) == null) {
+					indexed.incrementAndGet();
+				}
+			} catch (IOException e) {
+				// Removed since it was listed
+			}
+		});
 	}
 
 	//main function - creates a FileServer object and bind to name and port 
@@ -101,11 +1253,47 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 
 		try {
 			int port = Integer.parseInt(args[0]);
+			//bound each callback to a client so a dead client cannot stall an update or ownership transfer
+			if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+				System.setProperty("sun.rmi.transport.tcp.responseTimeout", 
+					System.getProperty("dfs.callback.timeout", "2000"));
+			}
 			System.out.println("Starting server...");
 			//create fileserver object
 			FileServer server = new FileServer(port);
+			//write any pending uploads to disk before exiting
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					//dfs.shard.leave=true hands this shard's files to the others when it stops
+					if (Boolean.getBoolean("dfs.shard.leave")) {
+						server.leaveCluster();
+					}
+					server.shutdown();
+				} catch (InterruptedException | RemoteException e) {}
+			}));
 			//bind server name to ip adress
 			Naming.rebind( "rmi://localhost:" + port + "/fileserver", server );
+			//dfs.transport=nio also serves the hot calls over NIO, on dfs.nio.port or the next port
+			if (System.getProperty("dfs.transport", "rmi").equals("nio")) {
+				server.startNioTransport(Integer.getInteger("dfs.nio.port", port + 1));
+			}
+			//dfs.shards lists the host:port of every server of a cluster, this one named by dfs.shard
+			String shards = System.getProperty("dfs.shards");
+			if (shards != null && !shards.isEmpty()) {
+				server.startSharding(System.getProperty("dfs.shard", "localhost:" + port), shards.split(","));
+			}
+			//index tmp/ and preload the hot set while already serving, dfs.warmup=false skips it
+			if (Boolean.parseBoolean(System.getProperty("dfs.warmup", "true"))) {
+				Thread warmUp = new Thread(() -> {
+					try {
+						server.warmUp();
+					} catch (IOException | InterruptedException e) {
+						System.err.println("Could not warm up cache: " + e);
+					}
+				}, "warm-up");
+				warmUp.setDaemon(true);
+				warmUp.start();
+			}
 			System.out.println("Server started.");
 		} 
 		catch ( Exception e ) {
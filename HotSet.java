@@ -0,0 +1,94 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A manifest of the files a server held in memory when it stopped, the
+ * hottest first, which the server preloads when it starts again.
+ *
+ * Each file is a line of its version, length, modification time and
+ * name. A file still of the same length and modification time when the
+ * server starts is known to be unchanged, so it keeps its version and
+ * clients' copies of it stay valid across the restart.
+ */
+public class HotSet {
+
+	// A file listed in the manifest
+	public static class Entry {
+		String name;				//name of the file under tmp/
+		long version;				//version of the file's contents
+		long length;				//length of the file on disk
+		long modified;				//modification time of the file on disk
+
+		Entry(String name, long version, long length, long modified) {
+			this.name = name;
+			this.version = version;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		/**
+		 * Returns whether the given file on disk is still the one listed
+		 */
+		boolean matches(File file) {
+			return file.length() == length && file.lastModified() == modified;
+		}
+	}
+
+	private File file;					//the manifest on disk
+
+	//Constructor - a manifest kept in the given file
+	public HotSet(File file) {
+
+		this.file = file;
+	}
+
+	/**
+	 * Writes the given cached files to the manifest, replacing it whole
+	 */
+	public void save(List<CachedFile> hottest) throws IOException {
+
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		File temp = new File(file.getParentFile(), file.getName() + ".write");
+		try (FileOutputStream out = new FileOutputStream(temp);
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+			for (CachedFile cached : hottest) {
+				File onDisk = cached.getFile();
+				writer.write(cached.getVersion() + " " + onDisk.length() + " " + onDisk.lastModified()
+					+ " " + cached.getName() + "\n");
+			}
+			writer.flush();
+			out.getChannel().force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads the manifest, hottest file first. Returns an empty list if
+	 * there is no manifest, and skips lines that cannot be parsed.
+	 */
+	public List<Entry> load() throws IOException {
+
+		List<Entry> entries = new ArrayList<Entry>();
+		if (!file.isFile()) {
+			return entries;
+		}
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			String[] fields = line.split(" ", 4);
+			if (fields.length < 4) {
+				continue;
+			}
+			try {
+				entries.add(new Entry(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+					Long.parseLong(fields[2])));
+			} catch (NumberFormatException e) {
+				// Not an entry
+			}
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,447 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only write-ahead journal of file updates.
+ *
+ * An update is appended as a record holding the file's path and its new
+ * contents, and append returns once the record is on disk. A single
+ * thread writes the records: every record queued while it syncs the
+ * last batch goes into the next batch, so concurrent updates share one
+ * fsync. The file itself is written later, and its record is released
+ * once that write is on disk.
+ *
+ * The journal is a directory of numbered segment files. A new segment
+ * is started once the current one exceeds the segment size, and old
+ * segments are deleted once all their records are released, which
+ * keeps the journal about as large as the updates not yet written to
+ * their files. Segments are deleted oldest first, so a later segment
+ * whose records replace those of an older, still live one is kept
+ * until the older one goes, and a replay never ends with the older
+ * contents. After a crash, replay writes the latest record of each
+ * file to the file and starts an empty journal.
+ *
+ * Records are an int length and an int CRC32C of the body, followed by
+ * the body: a kind byte, a short length and the UTF-8 bytes of the path,
+ * then the contents. A discard record has no contents, it tells replay
+ * that the file was replaced without the journal since its last update.
+ * A record cut short or failing its checksum ends the replay of its
+ * segment.
+ */
+public class Journal {
+
+	static final long SEGMENT_SIZE = Long.getLong("dfs.journal.segment", 64L * 1024 * 1024);	//bytes after which a new segment is started
+	static final byte UPDATE = 0;		//record of a file's new contents
+	static final byte DISCARD = 1;		//record dropping a file's earlier updates
+
+	// A record waiting to be written
+	private static class Pending {
+		ByteBuffer record;			//the whole record
+		long segment;				//segment it was written to
+		IOException failure;		//why it could not be written, null if it was
+		boolean done;				//written or failed
+	}
+
+	private File dir;							//directory holding the segments
+	private FileChannel channel;				//current segment
+	private long segment;						//number of the current segment
+	private long segmentBytes;					//bytes written to the current segment
+	private long oldest;						//number of the oldest segment not yet deleted
+	private TreeMap<Long, Integer> live;		//unreleased records of each segment
+	private ArrayDeque<Pending> queue;			//records waiting for the next batch
+	private boolean closed;						//whether close() was called
+	private Thread committer;					//writes and syncs batches of records
+	private LatencyHistogram commits = new LatencyHistogram();	//time taken to write and sync each batch
+	private LongAdder records = new LongAdder();					//records written
+
+	/**
+	 * Opens the journal in the given directory, replaying any records
+	 * left by a previous run into their files first
+	 */
+	public Journal(File dir) throws IOException {
+
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create journal directory " + dir);
+		}
+		live = new TreeMap<Long, Integer>();
+		queue = new ArrayDeque<Pending>();
+		segment = replay();
+		oldest = segment + 1;
+		openSegment(segment + 1);
+		committer = new Thread(this::commit, "journal-commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Appends an update of the given file and waits until it is on disk.
+	 * Returns the segment holding the record, which is passed to release
+	 * once the file itself is written.
+	 */
+	public long append(File file, byte[] contents) throws IOException {
+
+		return write(UPDATE, file, contents);
+	}
+
+	/**
+	 * Records that the given file was replaced by a write the journal did
+	 * not see, so a replay leaves it alone, and waits until the record is
+	 * on disk. The record needs no release.
+	 */
+	public void discard(File file) throws IOException {
+
+		release(write(DISCARD, file, new byte[0]));
+	}
+
+	/*
+	 * Queues a record and waits until the committer wrote it, returning
+	 * the segment holding it
+	 */
+	private long write(byte kind, File file, byte[] contents) throws IOException {
+
+		byte[] path = file.getPath().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(4 + 4 + 1 + 2 + path.length + contents.length);
+		record.putInt(1 + 2 + path.length + contents.length).putInt(0);
+		record.put(kind).putShort((short) path.length).put(path).put(contents);
+		CRC32C crc = new CRC32C();
+		crc.update(record.array(), 8, record.capacity() - 8);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		Pending pending = new Pending();
+		pending.record = record;
+		boolean interrupted = false;
+		try {
+			synchronized (this) {
+				if (closed) {
+					throw new IOException("Journal is closed");
+				}
+				queue.add(pending);
+				notifyAll();
+				while (!pending.done) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;		//the record is queued, it is written regardless
+					}
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (pending.failure != null) {
+			throw pending.failure;
+		}
+		return pending.segment;
+	}
+
+	/**
+	 * Releases a record once its file is written, deleting its segment
+	 * if that was the segment's last unreleased record and no older 
+	 * segment is left
+	 */
+	public synchronized void release(long recordSegment) {
+
+		Integer count = live.get(recordSegment);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			live.put(recordSegment, count - 1);
+			return;
+		}
+		live.remove(recordSegment);
+		deleteReleased();
+	}
+
+	/*
+	 * Deletes the closed segments with no unreleased records, from the
+	 * oldest up to the first one still live
+	 */
+	private synchronized void deleteReleased() {
+
+		while (oldest < segment && !live.containsKey(oldest)) {
+			segmentFile(oldest).delete();
+			oldest++;
+		}
+	}
+
+	/**
+	 * Writes the records queued so far and stops the committer. Records
+	 * not yet released stay in the journal for the next replay.
+	 */
+	public void close() throws InterruptedException {
+
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		committer.join();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more to do
+		}
+	}
+
+	/**
+	 * Getter for the time taken to write and sync each batch of records
+	 */
+	public LatencyHistogram getCommits() {
+		return commits;
+	}
+
+	/**
+	 * Getter for the number of records written
+	 */
+	public long getRecords() {
+		return records.sum();
+	}
+
+	/**
+	 * Getter for the number of segments holding unreleased records
+	 */
+	public synchronized int getSegments() {
+		return live.size();
+	}
+
+	/*
+	 * Committer loop, writes every queued record as one batch with a
+	 * single sync until the journal is closed and drained
+	 */
+	private void commit() {
+
+		while (true) {
+			List<Pending> batch;
+			synchronized (this) {
+				while (queue.isEmpty()) {
+					if (closed) {
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+				batch = new ArrayList<Pending>(queue);
+				queue.clear();
+			}
+			long start = System.nanoTime();
+			IOException failure = null;
+			long written = segment;
+			try {
+				written = writeBatch(batch);
+			} catch (IOException e) {
+				System.err.println("Could not write journal: " + e);
+				failure = e;
+				try {
+					//later records go after the torn one, where a replay would not find them
+					rollSegment();
+				} catch (IOException rollFailure) {
+					System.err.println("Could not start a journal segment: " + rollFailure);
+				}
+			}
+			commits.recordSince(start);
+			synchronized (this) {
+				for (Pending pending : batch) {
+					pending.segment = written;
+					pending.failure = failure;
+					pending.done = true;
+				}
+				if (failure == null) {
+					live.merge(written, batch.size(), Integer::sum);
+					records.add(batch.size());
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Writes a batch of records to the current segment, starting a new
+	 * one first if the current one is full, and syncs it. Returns the
+	 * segment written to.
+	 */
+	private long writeBatch(List<Pending> batch) throws IOException {
+
+		long bytes = 0;
+		ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = batch.get(i).record;
+			bytes += buffers[i].remaining();
+		}
+		if (segmentBytes > 0 && segmentBytes + bytes > SEGMENT_SIZE) {
+			rollSegment();
+		}
+		long remaining = bytes;
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+		channel.force(false);
+		segmentBytes += bytes;
+		return segment;
+	}
+
+	/*
+	 * Closes the current segment and starts the next, deleting the closed
+	 * one if all its records, and those of older segments, were already 
+	 * released
+	 */
+	private void rollSegment() throws IOException {
+
+		channel.close();
+		synchronized (this) {
+			openSegment(segment + 1);
+			deleteReleased();
+		}
+	}
+
+	private void openSegment(long number) throws IOException {
+
+		channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		segment = number;
+		segmentBytes = 0;
+		syncDirectory(dir);
+	}
+
+	private File segmentFile(long number) {
+
+		return new File(dir, String.format("%016d.log", number));
+	}
+
+	/*
+	 * Writes the latest record of each file found in the segments left by
+	 * a previous run to its file, then deletes the segments. Returns the
+	 * number of the last segment found, 0 if there were none.
+	 */
+	private long replay() throws IOException {
+
+		TreeMap<Long, File> segments = new TreeMap<Long, File>();
+		File[] files = dir.listFiles((parent, name) -> name.endsWith(".log"));
+		for (File file : files == null ? new File[0] : files) {
+			try {
+				segments.put(Long.parseLong(file.getName().substring(0, file.getName().length() - 4)), file);
+			} catch (NumberFormatException e) {
+				// Not a segment
+			}
+		}
+		if (segments.isEmpty()) {
+			return 0;
+		}
+		//latest contents of each file, in the order they were last updated
+		LinkedHashMap<String, byte[]> latest = new LinkedHashMap<String, byte[]>();
+		for (File file : segments.values()) {
+			readSegment(file, latest);
+		}
+		HashSet<File> directories = new HashSet<File>();
+		for (Map.Entry<String, byte[]> update : latest.entrySet()) {
+			File target = new File(update.getKey());
+			File temp = new File(target.getParentFile(), "." + target.getName() + ".write");
+			try (FileOutputStream out = new FileOutputStream(temp)) {
+				out.write(update.getValue());
+				out.getChannel().force(true);
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+			directories.add(target.getAbsoluteFile().getParentFile());
+		}
+		for (File directory : directories) {
+			syncDirectory(directory);
+		}
+		if (!latest.isEmpty()) {
+			System.out.println("Journal replayed " + latest.size() + " file updates");
+		}
+		for (File file : segments.values()) {
+			file.delete();
+		}
+		return segments.lastKey();
+	}
+
+	/*
+	 * Reads the records of a segment into the given map of latest
+	 * contents by path, up to the first record that is incomplete or
+	 * fails its checksum
+	 */
+	private static void readSegment(File file, Map<String, byte[]> latest) throws IOException {
+
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(8);
+			while (true) {
+				header.clear();
+				if (!readFully(in, header)) {
+					return;
+				}
+				header.flip();
+				int length = header.getInt();
+				int checksum = header.getInt();
+				if (length < 3 || length > in.size() - in.position()) {
+					System.err.println("Journal " + file.getName() + " ends with a torn record");
+					return;
+				}
+				ByteBuffer body = ByteBuffer.allocate(length);
+				if (!readFully(in, body)) {
+					return;
+				}
+				CRC32C crc = new CRC32C();
+				crc.update(body.array(), 0, length);
+				if ((int) crc.getValue() != checksum) {
+					System.err.println("Journal " + file.getName() + " ends with a corrupt record");
+					return;
+				}
+				body.flip();
+				byte kind = body.get();
+				byte[] path = new byte[body.getShort()];
+				body.get(path);
+				byte[] contents = new byte[body.remaining()];
+				body.get(contents);
+				String key = new String(path, StandardCharsets.UTF_8);
+				latest.remove(key);
+				if (kind == UPDATE) {
+					latest.put(key, contents);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Fills the buffer from the channel, returns false at the end of the channel
+	 */
+	private static boolean readFully(FileChannel in, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void syncDirectory(File directory) {
+
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Not every platform can sync a directory
+		}
+	}
+}
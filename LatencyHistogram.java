@@ -0,0 +1,156 @@
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations cheaply enough to be called on every request.
+ *
+ * Durations are counted in buckets, eight per power of two, so 
+ * percentiles are within an eighth of the real value. Recording takes
+ * no locks.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 8;				//buckets per power of two
+	private static final int SUB_BITS = 3;					//log2 of SUB_BUCKETS
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();		//durations recorded
+	private final LongAdder total = new LongAdder();		//sum of the durations in nanoseconds
+	private final AtomicLong max = new AtomicLong();		//longest duration in nanoseconds
+
+	/**
+	 * Records a duration in nanoseconds
+	 */
+	public void record(long nanos) {
+
+		nanos = Math.max(0, nanos);
+		buckets.incrementAndGet(index(nanos));
+		count.increment();
+		total.add(nanos);
+		max.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * Records the time since the given System.nanoTime()
+	 */
+	public void recordSince(long start) {
+
+		record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Getter for the number of durations recorded
+	 */
+	public long getCount() {
+
+		return count.sum();
+	}
+
+	/**
+	 * Returns the duration in nanoseconds the given fraction of durations
+	 * were at most, rounded up to the end of its bucket
+	 */
+	public long getPercentile(double fraction) {
+
+		long target = (long) Math.ceil(getCount() * fraction);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= target && seen > 0) {
+				return Math.min(lowest(i + 1) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the counts and percentiles in milliseconds
+	 */
+	public Snapshot snapshot() {
+
+		long n = getCount();
+		return new Snapshot(n, n == 0 ? 0 : total.sum() / 1e6 / n, getPercentile(0.5) / 1e6, 
+			getPercentile(0.99) / 1e6, max.get() / 1e6);
+	}
+
+	/*
+	 * Bucket of a duration. Durations under SUB_BUCKETS have a bucket 
+	 * each, larger ones go by their highest bit and the bits below it.
+	 */
+	private static int index(long nanos) {
+
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/*
+	 * Smallest duration in a bucket
+	 */
+	private static long lowest(int index) {
+
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		if (exponent > 62) {
+			return Long.MAX_VALUE;
+		}
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * Counts and percentiles of a histogram at one point in time, in 
+	 * milliseconds
+	 */
+	public static class Snapshot {
+
+		private final long count;
+		private final double mean;
+		private final double median;
+		private final double p99;
+		private final double max;
+
+		@ConstructorProperties({"count", "mean", "median", "p99", "max"})
+		public Snapshot(long count, double mean, double median, double p99, double max) {
+
+			this.count = count;
+			this.mean = mean;
+			this.median = median;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getMedian() {
+			return median;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+
+			return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", 
+				count, mean, median, p99, max);
+		}
+	}
+}
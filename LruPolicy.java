@@ -0,0 +1,59 @@
+/*
+*	@author Tiana Greisel and Garrett Singletary
+*	@title	CSS434 - Program 4 Distributed File System
+*	
+*/
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Evicts the least recently used file.
+ */
+public class LruPolicy implements EvictionPolicy {
+
+	private LinkedHashMap<String, Boolean> order;		//files in memory, least recently used first
+
+	//Constructor
+	public LruPolicy() {
+
+		order = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	}
+
+	@Override
+	public void add(String name) {
+
+		order.put(name, Boolean.TRUE);
+	}
+
+	@Override
+	public void access(String name) {
+
+		order.get(name);		//moves the file to the most recently used end
+	}
+
+	@Override
+	public void remove(String name) {
+
+		order.remove(name);
+	}
+
+	@Override
+	public String victim(Predicate<String> evictable) {
+
+		for (String name : order.keySet()) {
+			if (evictable.test(name)) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<String> hottest() {
+
+		List<String> hottest = new ArrayList<String>(order.keySet());
+		Collections.reverse(hottest);
+		return hottest;
+	}
+}
@@ -0,0 +1,186 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol of the NIO transport.
+ *
+ * Every request starts with the id the client gave it and an opcode, 
+ * and every response with the id of its request and a status. Requests
+ * on one connection are served concurrently and answered in any order,
+ * the ids match responses to requests. Strings are a short length, -1 
+ * for null, and UTF-8 bytes. Integers are big endian.
+ *
+ *   DOWNLOAD   client, filename, mode, version (-1 if unknown)
+ *              -> version, lease, notModified byte, length, then the
+ *                 body in DATA frames
+ *   UPLOAD     client, filename, length, body bytes -> result byte
+ *   OWNERSHIP  client, filename -> result byte
+ *   RELEASE    client, filename (null for all files) -> nothing
+ *
+ * A failed request is answered with status ERROR and a message, or 
+ * for a file of another shard with WRONG_SHARD, a message and the 
+ * shards separated by commas.
+ *
+ * A download's body is sent as frames of status DATA, an int count and
+ * that many bytes, at most FRAME_SIZE each. Responses to other requests
+ * on the connection may come between the frames, so one large download
+ * does not hold up the others.
+ */
+public class NioProtocol {
+
+	static final byte DOWNLOAD = 1;
+	static final byte UPLOAD = 2;
+	static final byte OWNERSHIP = 3;
+	static final byte RELEASE = 4;
+
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+	static final byte WRONG_SHARD = 2;
+	static final byte DATA = 3;
+
+	static final int FRAME_SIZE = 256 * 1024;			//most bytes of a body sent in one frame
+
+	static final int BUFFER_SIZE = 64 * 1024;			//bytes read from a socket at once
+
+	/**
+	 * Reads the protocol's values from a blocking socket channel through
+	 * a buffer. Reads take only the channel's read lock, so another 
+	 * thread can write to the channel meanwhile.
+	 */
+	static class Reader {
+
+		private SocketChannel channel;
+		private ByteBuffer buffer;
+
+		Reader(SocketChannel channel) {
+
+			this.channel = channel;
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.flip();
+		}
+
+		/*
+		 * Reads until the buffer holds at least the given number of bytes
+		 */
+		private void require(int count) throws IOException {
+
+			if (buffer.remaining() >= count) {
+				return;
+			}
+			buffer.compact();
+			while (buffer.position() < count) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("Connection closed");
+				}
+			}
+			buffer.flip();
+		}
+
+		byte readByte() throws IOException {
+
+			require(1);
+			return buffer.get();
+		}
+
+		int readInt() throws IOException {
+
+			require(4);
+			return buffer.getInt();
+		}
+
+		long readLong() throws IOException {
+
+			require(8);
+			return buffer.getLong();
+		}
+
+		String readString() throws IOException {
+
+			require(2);
+			int length = buffer.getShort();
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		void readFully(byte[] bytes) throws IOException {
+
+			readFully(ByteBuffer.wrap(bytes));
+		}
+
+		/**
+		 * Fills the given buffer, first from what was already read
+		 */
+		void readFully(ByteBuffer target) throws IOException {
+
+			while (target.hasRemaining()) {
+				if (!buffer.hasRemaining()) {
+					buffer.clear();
+					if (channel.read(buffer) < 0) {
+						throw new EOFException("Connection closed");
+					}
+					buffer.flip();
+				}
+				ByteBuffer part = buffer.duplicate();
+				part.limit(part.position() + Math.min(part.remaining(), target.remaining()));
+				target.put(part);
+				buffer.position(part.position());
+			}
+		}
+
+		/**
+		 * Reads and drops the given number of bytes
+		 */
+		void skip(long count) throws IOException {
+
+			while (count > 0) {
+				require(1);
+				int dropped = (int) Math.min(buffer.remaining(), count);
+				buffer.position(buffer.position() + dropped);
+				count -= dropped;
+			}
+		}
+	}
+
+	/**
+	 * Size of a string written by putString
+	 */
+	static int sizeOf(String value) {
+
+		return 2 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+	}
+
+	static void putString(ByteBuffer buffer, String value) {
+
+		if (value == null) {
+			buffer.putShort((short) -1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("String too long for the protocol");
+		}
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Writes all of the given buffers to a blocking channel
+	 */
+	static void writeFully(SocketChannel channel, ByteBuffer... buffers) throws IOException {
+
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+	}
+}
@@ -0,0 +1,455 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client side of the NIO transport, a ServerInterface that sends 
+ * downloads, uploads, ownership requests and releases over NioProtocol 
+ * and the other calls over RMI.
+ *
+ * Calls from any number of threads share one connection. Each waits for
+ * the response carrying its id, which a single thread reads and hands 
+ * over as it arrives. Callbacks to the client still come over RMI.
+ *
+ * A response that cannot be used, such as a download too large to 
+ * hold, fails only its own call. When the connection breaks every call
+ * waiting on it fails, and the next call opens a new connection.
+ */
+public class NioServerStub implements ServerInterface {
+
+	private ServerInterface rmi;						//the server's RMI stub, for the other calls
+	private String host;								//host of the server's NioTransport
+	private int port;									//port of the server's NioTransport
+	private AtomicInteger nextId = new AtomicInteger();	//id of the next request
+	private Connection connection;						//the current connection, replaced once it breaks
+	private boolean closed;								//whether close() was called
+
+	// A request waiting for its response
+	private static class Call {
+		byte op;
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		long version;				//version of a download, known once its header arrived
+		long lease;					//lease of a download
+		boolean receiving;			//whether a download's header arrived and its body is arriving
+		byte[] data;				//body of a download as it arrives, null if it is being dropped
+		long remaining;				//bytes of a download's body still to arrive
+
+		Call(byte op) {
+			this.op = op;
+		}
+	}
+
+	// A connection to the server and the calls waiting on it
+	private class Connection {
+		SocketChannel channel;			//connection to the server's NioTransport
+		NioProtocol.Reader in;			//reads responses from the connection
+		ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();	//requests waiting for a response, by id
+		volatile IOException failure;	//why the connection broke, null while it works
+
+		Connection() throws IOException {
+
+			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.socket().setTcpNoDelay(true);
+			in = new NioProtocol.Reader(channel);
+			Thread reader = new Thread(() -> readResponses(this), "nio-responses");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/*
+		 * Marks the connection broken and fails the calls waiting on it
+		 */
+		void fail(IOException e) {
+
+			if (failure == null) {
+				failure = e;
+			}
+			try {
+				channel.close();
+			} catch (IOException closing) {
+				// Broken already
+			}
+			for (Integer id : calls.keySet()) {
+				Call call = calls.remove(id);
+				if (call != null) {
+					call.result.completeExceptionally(new RemoteException("Connection to server lost", e));
+				}
+			}
+		}
+	}
+
+	//Constructor - connects to the transport at the given address of the server with the given stub
+	public NioServerStub(String host, int port, ServerInterface rmi) throws IOException {
+
+		this.rmi = rmi;
+		this.host = host;
+		this.port = port;
+		connection = new Connection();
+	}
+
+	/**
+	 * Closes the connection, calls waiting for a response fail
+	 */
+	public synchronized void close() throws IOException {
+
+		closed = true;
+		connection.fail(new IOException("Stub closed"));
+	}
+
+	/*
+	 * Returns the current connection, opening a new one if it broke
+	 */
+	private synchronized Connection connection() throws RemoteException {
+
+		if (connection.failure != null) {
+			if (closed) {
+				throw new RemoteException("Stub closed");
+			}
+			try {
+				connection = new Connection();
+			} catch (IOException e) {
+				throw new RemoteException("Could not reconnect to server", e);
+			}
+		}
+		return connection;
+	}
+
+	@Override
+	public FileContents download(String client, String filename, String mode) throws RemoteException {
+
+		return downloadIfModified(client, filename, mode, -1);
+	}
+
+	@Override
+	public FileContents downloadIfModified(String client, String filename, String mode, long version) 
+			throws RemoteException {
+
+		ByteBuffer request = request(NioProtocol.DOWNLOAD, client, filename, NioProtocol.sizeOf(mode) + 8);
+		NioProtocol.putString(request, mode);
+		request.putLong(version);
+		return (FileContents) call(request);
+	}
+
+	@Override
+	public boolean upload(String client, String filename, FileContents contents) throws RemoteException {
+
+		ByteBuffer body = contents.getBuffer();
+		ByteBuffer request = request(NioProtocol.UPLOAD, client, filename, 8);
+		request.putLong(body.remaining());
+		return (Boolean) call(request, body);
+	}
+
+	@Override
+	public boolean requestOwnership(String client, String filename) throws RemoteException {
+
+		return (Boolean) call(request(NioProtocol.OWNERSHIP, client, filename, 0));
+	}
+
+	@Override
+	public void release(String client, String filename) throws RemoteException {
+
+		call(request(NioProtocol.RELEASE, client, filename, 0));
+	}
+
+	@Override
+	public FileContents[] downloadAll(String client, String[] filenames, String[] modes, long[] versions) 
+			throws RemoteException {
+		return rmi.downloadAll(client, filenames, modes, versions);
+	}
+
+	@Override
+	public FileContents[] prefetch(String client, String[] filenames, long[] versions) throws RemoteException {
+		return rmi.prefetch(client, filenames, versions);
+	}
+
+	@Override
+	public String negotiate(String client, String[] formats) throws RemoteException {
+		return rmi.negotiate(client, formats);
+	}
+
+	@Override
+	public FileContents validate(String client, String filename) throws RemoteException {
+		return rmi.validate(client, filename);
+	}
+
+	@Override
+	public FileContents subscribe(String replica, String filename) throws RemoteException {
+		return rmi.subscribe(replica, filename);
+	}
+
+	@Override
+	public String[] getShards() throws RemoteException {
+		return rmi.getShards();
+	}
+
+	@Override
+	public void setShards(String[] shards) throws RemoteException {
+		rmi.setShards(shards);
+	}
+
+	@Override
+	public boolean handOff(String filename, String[] shards) throws RemoteException {
+		return rmi.handOff(filename, shards);
+	}
+
+	@Override
+	public BlockSignature getSignature(String client, String filename) throws RemoteException {
+		return rmi.getSignature(client, filename);
+	}
+
+	@Override
+	public boolean uploadDelta(String client, String filename, FileDelta delta) throws RemoteException {
+		return rmi.uploadDelta(client, filename, delta);
+	}
+
+	@Override
+	public String[] predictNext(String client, String previous, String filename, long budget) throws RemoteException {
+		return rmi.predictNext(client, previous, filename, budget);
+	}
+
+	@Override
+	public boolean lockRange(String client, String filename, long offset, long length) throws RemoteException {
+		return rmi.lockRange(client, filename, offset, length);
+	}
+
+	@Override
+	public boolean uploadRange(String client, String filename, long offset, FileContents contents) throws RemoteException {
+		return rmi.uploadRange(client, filename, offset, contents);
+	}
+
+	@Override
+	public void unlockRange(String client, String filename, long offset, long length) throws RemoteException {
+		rmi.unlockRange(client, filename, offset, length);
+	}
+
+	@Override
+	public TransferHandle openDownload(String client, String filename, String mode) throws RemoteException {
+		return rmi.openDownload(client, filename, mode);
+	}
+
+	@Override
+	public TransferHandle openDownloadIfModified(String client, String filename, String mode, long version) 
+			throws RemoteException {
+		return rmi.openDownloadIfModified(client, filename, mode, version);
+	}
+
+	@Override
+	public FileContents readChunk(long transfer, long offset, int length) throws RemoteException {
+		return rmi.readChunk(transfer, offset, length);
+	}
+
+	@Override
+	public TransferHandle openUpload(String client, String filename, long length) throws RemoteException {
+		return rmi.openUpload(client, filename, length);
+	}
+
+	@Override
+	public boolean writeChunk(long transfer, long offset, FileContents chunk) throws RemoteException {
+		return rmi.writeChunk(transfer, offset, chunk);
+	}
+
+	@Override
+	public boolean commitUpload(long transfer) throws RemoteException {
+		return rmi.commitUpload(transfer);
+	}
+
+	@Override
+	public void closeTransfer(long transfer) throws RemoteException {
+		rmi.closeTransfer(transfer);
+	}
+
+	/*
+	 * Starts a request with room for the given number of bytes after 
+	 * its header. The id is filled in when the request is sent.
+	 */
+	private static ByteBuffer request(byte op, String client, String filename, int extra) {
+
+		ByteBuffer request = ByteBuffer.allocate(4 + 1 + NioProtocol.sizeOf(client) 
+			+ NioProtocol.sizeOf(filename) + extra);
+		request.putInt(0).put(op);
+		NioProtocol.putString(request, client);
+		NioProtocol.putString(request, filename);
+		return request;
+	}
+
+	/*
+	 * Sends a request, followed by the given body if any, and waits for its response
+	 */
+	private Object call(ByteBuffer request, ByteBuffer... body) throws RemoteException {
+
+		Connection connection = connection();
+		int id = nextId.incrementAndGet();
+		Call call = new Call(request.get(4));
+		connection.calls.put(id, call);
+		if (connection.failure != null) {
+			connection.calls.remove(id);
+			throw new RemoteException("Connection to server lost", connection.failure);
+		}
+		request.putInt(0, id);
+		request.flip();
+		ByteBuffer[] buffers = new ByteBuffer[1 + body.length];
+		buffers[0] = request;
+		System.arraycopy(body, 0, buffers, 1, body.length);
+		try {
+			synchronized (connection) {
+				NioProtocol.writeFully(connection.channel, buffers);
+			}
+		} catch (IOException e) {
+			//a partly written request leaves the connection unusable
+			connection.fail(e);
+			throw new RemoteException("Could not send request", e);
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return call.result.get();
+				} catch (InterruptedException e) {
+					interrupted = true;		//the response still has to be read off the connection
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RemoteException) {
+						throw (RemoteException) e.getCause();
+					}
+					throw new RemoteException("Request failed", e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * Reads responses and completes their calls until the connection breaks
+	 */
+	private void readResponses(Connection connection) {
+
+		NioProtocol.Reader in = connection.in;
+		try {
+			while (true) {
+				int id = in.readInt();
+				byte status = in.readByte();
+				if (status == NioProtocol.DATA) {
+					readData(connection, id, in.readInt());
+					continue;
+				}
+				Call call = connection.calls.remove(id);
+				if (call == null || call.receiving) {
+					throw new IOException("Response to unknown request " + id);
+				}
+				if (status == NioProtocol.ERROR) {
+					call.result.completeExceptionally(new RemoteException(in.readString()));
+					continue;
+				}
+				if (status == NioProtocol.WRONG_SHARD) {
+					String message = in.readString();
+					call.result.completeExceptionally(new WrongShardException(message, in.readString().split(",")));
+					continue;
+				}
+				switch (call.op) {
+					case NioProtocol.DOWNLOAD:
+						readContents(connection, id, call);
+						break;
+					case NioProtocol.UPLOAD:
+					case NioProtocol.OWNERSHIP:
+						call.result.complete(in.readByte() != 0);
+						break;
+					default:
+						call.result.complete(null);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			connection.fail(e instanceof IOException ? (IOException) e : new IOException("Malformed response", e));
+		}
+	}
+
+	/*
+	 * Reads the header of a download response. The body follows in DATA
+	 * frames, a download too large to hold fails and its body is dropped.
+	 */
+	private void readContents(Connection connection, int id, Call call) throws IOException {
+
+		NioProtocol.Reader in = connection.in;
+		call.version = in.readLong();
+		call.lease = in.readLong();
+		boolean notModified = in.readByte() != 0;
+		long length = in.readLong();
+		if (notModified) {
+			FileContents contents = FileContents.notModified(call.version);
+			contents.setLease(call.lease);
+			call.result.complete(contents);
+			return;
+		}
+		if (length < 0 || length > Integer.MAX_VALUE - 8) {
+			call.result.completeExceptionally(new RemoteException("File too large for a single transfer: " + length));
+		} else {
+			try {
+				call.data = new byte[(int) length];
+			} catch (OutOfMemoryError e) {
+				call.result.completeExceptionally(new RemoteException("No memory for a download of " + length + " bytes"));
+			}
+		}
+		call.remaining = Math.max(0, length);
+		if (call.remaining == 0) {
+			finish(call);
+		} else {
+			//waits for its body, and fails with the connection if it breaks first
+			call.receiving = true;
+			connection.calls.put(id, call);
+		}
+	}
+
+	/*
+	 * Reads a frame of a download's body. Frames of downloads that failed
+	 * are dropped, as is a frame running past its download's length, 
+	 * which fails that download.
+	 */
+	private void readData(Connection connection, int id, int count) throws IOException {
+
+		if (count < 0) {
+			throw new IOException("Malformed frame of " + count + " bytes");
+		}
+		NioProtocol.Reader in = connection.in;
+		Call call = connection.calls.get(id);
+		if (call == null || !call.receiving) {
+			in.skip(count);		//of a download that already failed
+			return;
+		}
+		if (count > call.remaining) {
+			in.skip(count);
+			connection.calls.remove(id);
+			call.result.completeExceptionally(new RemoteException("Download longer than announced"));
+			return;
+		}
+		if (call.data == null) {
+			in.skip(count);
+		} else {
+			in.readFully(ByteBuffer.wrap(call.data, (int) (call.data.length - call.remaining), count));
+		}
+		call.remaining -= count;
+		if (call.remaining == 0) {
+			connection.calls.remove(id);
+			finish(call);
+		}
+	}
+
+	/*
+	 * Completes a download whose body has arrived
+	 */
+	private static void finish(Call call) {
+
+		if (call.data == null) {
+			return;		//failed already
+		}
+		FileContents contents = new FileContents(call.data, call.version);
+		contents.setLease(call.lease);
+		call.result.complete(contents);
+	}
+}
@@ -0,0 +1,301 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a file server's downloads, uploads, ownership requests and 
+ * releases over NioProtocol, next to RMI.
+ *
+ * Each connection has a thread reading its requests, which are then 
+ * served by a shared pool so a request waiting for ownership does not 
+ * hold up the others on its connection. Responses are written under 
+ * the connection's lock, a download's body a frame at a time so the 
+ * other responses are sent between its frames. Downloads of files whose
+ * updates have reached disk are sent with FileChannel.transferTo.
+ */
+public class NioTransport {
+
+	private FileServer server;							//server the requests are made of
+	private ServerSocketChannel listener;				//accepts connections
+	private ExecutorService workers;					//serves requests
+	private Set<SocketChannel> connections;				//open connections
+	private volatile boolean closed;					//whether close() was called
+
+	//Constructor - starts accepting connections for the given server on the given port
+	public NioTransport(FileServer server, int port) throws IOException {
+
+		this.server = server;
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(port));
+		connections = ConcurrentHashMap.newKeySet();
+		workers = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "nio-request");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Thread acceptor = new Thread(this::accept, "nio-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Stops accepting connections and closes the open ones
+	 */
+	public void close() {
+
+		closed = true;
+		try {
+			listener.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		for (SocketChannel connection : connections) {
+			closeQuietly(connection);
+		}
+		workers.shutdown();
+	}
+
+	/*
+	 * Accept loop, starts a reader thread for each connection
+	 */
+	private void accept() {
+
+		while (!closed) {
+			try {
+				SocketChannel connection = listener.accept();
+				connection.socket().setTcpNoDelay(true);
+				connections.add(connection);
+				Thread reader = new Thread(() -> serve(connection), "nio-connection");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				System.err.println("Could not accept connection: " + e);
+			}
+		}
+	}
+
+	/*
+	 * Reads requests from a connection until it closes. Request bodies 
+	 * are read here, so the next request can be read while a worker 
+	 * serves this one.
+	 */
+	private void serve(SocketChannel connection) {
+
+		NioProtocol.Reader in = new NioProtocol.Reader(connection);
+		try {
+			while (true) {
+				int id = in.readInt();
+				byte op = in.readByte();
+				String client = in.readString();
+				String filename = in.readString();
+				switch (op) {
+					case NioProtocol.DOWNLOAD: {
+						String mode = in.readString();
+						long version = in.readLong();
+						workers.execute(() -> download(connection, id, client, filename, mode, version));
+						break;
+					}
+					case NioProtocol.UPLOAD:
+						upload(connection, in, id, client, filename, in.readLong());
+						break;
+					case NioProtocol.OWNERSHIP:
+						workers.execute(() -> respond(connection, id, () -> server.requestOwnership(client, filename)));
+						break;
+					case NioProtocol.RELEASE:
+						workers.execute(() -> respond(connection, id, () -> {
+							server.release(client, filename);
+							return null;
+						}));
+						break;
+					default:
+						throw new IOException("Unknown request " + op);
+				}
+			}
+		} catch (IOException e) {
+			// Connection closed or broken, drop it
+		} finally {
+			connections.remove(connection);
+			closeQuietly(connection);
+		}
+	}
+
+	/*
+	 * Sends a file's contents, or no contents if the client's copy is current
+	 */
+	private void download(SocketChannel connection, int id, String client, String filename, 
+			String mode, long version) {
+
+		FileBody body;
+		try {
+			body = server.downloadBody(client, filename, mode, version);
+		} catch (Exception e) {
+			sendError(connection, id, e);
+			return;
+		}
+		if (body != null && body.length() > Integer.MAX_VALUE - 8) {
+			closeQuietly(body);
+			sendError(connection, id, new IOException("File too large for a single transfer, use a chunked download"));
+			return;
+		}
+		try {
+			ByteBuffer header = ByteBuffer.allocate(4 + 1 + 8 + 8 + 1 + 8);
+			header.putInt(id).put(NioProtocol.OK);
+			header.putLong(body == null ? version : body.getVersion());
+			header.putLong(CachedFile.LEASE_DURATION);
+			header.put((byte) (body == null ? 1 : 0));
+			header.putLong(body == null ? 0 : body.length());
+			header.flip();
+			synchronized (connection) {
+				NioProtocol.writeFully(connection, header);
+			}
+			long length = body == null ? 0 : body.length();
+			ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 4);
+			for (long offset = 0; offset < length; ) {
+				int count = (int) Math.min(NioProtocol.FRAME_SIZE, length - offset);
+				frame.clear();
+				frame.putInt(id).put(NioProtocol.DATA).putInt(count);
+				frame.flip();
+				//the lock is taken for each frame, so other responses go out between them
+				synchronized (connection) {
+					NioProtocol.writeFully(connection, frame);
+					body.writeTo(connection, offset, count);
+				}
+				offset += count;
+			}
+		} catch (IOException e) {
+			//the connection is broken, its reader drops it
+			closeQuietly(connection);
+		} finally {
+			closeQuietly(body);
+		}
+	}
+
+	/*
+	 * Reads an upload's body and has a worker apply it. Bodies that fit 
+	 * in memory are uploaded whole, larger ones are staged on disk as a
+	 * chunked upload, which the worker commits.
+	 */
+	private void upload(SocketChannel connection, NioProtocol.Reader in, int id, String client, 
+			String filename, long length) throws IOException {
+
+		if (length <= CachedFile.MAX_HEAP_SIZE) {
+			byte[] data = new byte[(int) length];
+			in.readFully(data);
+			workers.execute(() -> respond(connection, id, () -> server.upload(client, filename, new FileContents(data))));
+			return;
+		}
+		TransferHandle handle;
+		try {
+			handle = server.openUpload(client, filename, length);
+		} catch (IOException e) {
+			in.skip(length);
+			sendError(connection, id, e);
+			return;
+		}
+		ByteBuffer chunk = ByteBuffer.allocateDirect(FileServer.CHUNK_SIZE);
+		try {
+			Transfer transfer = server.getTransfer(handle.getId());
+			for (long offset = 0; offset < length; offset += chunk.limit()) {
+				chunk.clear();
+				chunk.limit((int) Math.min(chunk.capacity(), length - offset));
+				in.readFully(chunk);
+				chunk.flip();
+				transfer.write(offset, chunk);
+			}
+		} catch (IOException e) {
+			server.closeTransfer(handle.getId());
+			throw e;
+		}
+		workers.execute(() -> respond(connection, id, () -> server.commitUpload(handle.getId())));
+	}
+
+	// A request answered with a boolean or nothing
+	private interface Call {
+		Boolean call() throws Exception;
+	}
+
+	/*
+	 * Serves a request and sends its result
+	 */
+	private void respond(SocketChannel connection, int id, Call call) {
+
+		Boolean result;
+		try {
+			result = call.call();
+		} catch (Exception e) {
+			sendError(connection, id, e);
+			return;
+		}
+		ByteBuffer response = ByteBuffer.allocate(4 + 1 + 1);
+		response.putInt(id).put(NioProtocol.OK);
+		if (result != null) {
+			response.put((byte) (result ? 1 : 0));
+		}
+		response.flip();
+		send(connection, response);
+	}
+
+	/*
+	 * Answers a request that failed
+	 */
+	private void sendError(SocketChannel connection, int id, Exception e) {
+
+		WrongShardException wrongShard = WrongShardException.find(e);
+		if (wrongShard != null) {
+			String message = wrongShard.getMessage();
+			String shards = String.join(",", wrongShard.getShards());
+			ByteBuffer response = ByteBuffer.allocate(4 + 1 + NioProtocol.sizeOf(message) + NioProtocol.sizeOf(shards));
+			response.putInt(id).put(NioProtocol.WRONG_SHARD);
+			NioProtocol.putString(response, message);
+			NioProtocol.putString(response, shards);
+			response.flip();
+			send(connection, response);
+			return;
+		}
+		String message = String.valueOf(e.getMessage());
+		if (message.length() > 1024) {
+			message = message.substring(0, 1024);
+		}
+		ByteBuffer response = ByteBuffer.allocate(4 + 1 + NioProtocol.sizeOf(message));
+		response.putInt(id).put(NioProtocol.ERROR);
+		NioProtocol.putString(response, message);
+		response.flip();
+		send(connection, response);
+	}
+
+	/*
+	 * Writes a whole response to a connection
+	 */
+	private void send(SocketChannel connection, ByteBuffer response) {
+
+		try {
+			synchronized (connection) {
+				NioProtocol.writeFully(connection, response);
+			}
+		} catch (IOException e) {
+			closeQuietly(connection);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing more to do
+		}
+	}
+}
@@ -0,0 +1,15 @@
+import java.rmi.*;
+
+public interface ReplicaInterface extends Remote {
+    // Returns a copy of the file at least as new as the given version, 
+    // which the client got from the primary when it registered the read.
+    // A copy that is still older, if the primary could not be reached, 
+    // is returned as it is and the client reads from the primary instead.
+    public FileContents read( String filename, long version )
+	throws RemoteException;
+    // Called by the primary with the new contents of a file after each
+    // update. Returns false if the replica no longer keeps a copy of the
+    // file, the primary then stops pushing it.
+    public boolean push( String filename, FileContents contents )
+	throws RemoteException;
+}
@@ -0,0 +1,218 @@
+/*
+*	@author Tiana Greisel and Garrett Singletary
+*	@title	CSS434 - Program 4 Distributed File System
+*
+*/
+
+import java.rmi.*;
+import java.rmi.server.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A read replica of a file server. Clients register reads with the
+ * primary, which names the current version of the file, and read the
+ * contents from a replica with that version.
+ *
+ * The replica copies a file from the primary the first time it is read
+ * and is then pushed the file's contents after every update. A read
+ * asking for a version the replica has not been pushed yet waits a
+ * little for the push, then copies the file again. The primary keeps
+ * the readers and owners of every file, replicas are never invalidated
+ * and never serve writes.
+ */
+public class ReplicaServer extends UnicastRemoteObject implements ReplicaInterface {
+
+	static final long PUSH_WAIT = Long.getLong("dfs.replica.wait", 100);	//milliseconds a read waits for a pushed update
+
+	private String name;									//host:port the replica is bound at
+	private ServerInterface primary;						//server holding the files' coherence state
+	private boolean compression;							//keep copies compressed for sending
+	private long capacity;									//most bytes of copies kept
+	private long used;										//bytes of copies kept
+	private LinkedHashMap<String, FileContents> copies;		//copies by file name, least recently read first
+	private ConcurrentHashMap<String, FutureTask<FileContents>> fetching;	//in-flight copies from the primary
+	private LongAdder reads = new LongAdder();				//reads served
+	private LongAdder fetches = new LongAdder();			//copies made from the primary
+	private LongAdder pushes = new LongAdder();				//updates pushed by the primary
+
+	//Constructor - a replica bound at the given name of the given primary
+	public ReplicaServer(String name, ServerInterface primary) throws RemoteException {
+
+		this.name = name;
+		this.primary = primary;
+		compression = Boolean.parseBoolean(System.getProperty("dfs.compress", "true"));
+		capacity = Long.getLong("dfs.replica.bytes", 256L * 1024 * 1024);
+		copies = new LinkedHashMap<String, FileContents>(16, 0.75f, true);
+		fetching = new ConcurrentHashMap<String, FutureTask<FileContents>>();
+	}
+
+	//method called remotely by a client to read a file at least as new as the given version.
+	public FileContents read(String filename, long version) throws RemoteException{
+
+		reads.increment();
+		FileContents copy = getCopy(filename, version);
+		if (copy == null || copy.getVersion() < version) {
+			copy = fetch(filename);
+		}
+		return copy;
+	}
+
+	//method called remotely by the primary with a file's contents after it was updated.
+	public boolean push(String filename, FileContents contents) throws RemoteException{
+
+		pushes.increment();
+		synchronized (this) {
+			if (!copies.containsKey(filename)) {
+				return false;		//evicted, the primary can stop pushing it
+			}
+		}
+		store(filename, contents);
+		return true;
+	}
+
+	/**
+	 * Returns the replica's copy of a file, waiting up to PUSH_WAIT for
+	 * a push if the copy is older than the given version. Returns null if
+	 * there is no copy.
+	 */
+	private synchronized FileContents getCopy(String filename, long version) throws RemoteException {
+
+		long deadline = System.currentTimeMillis() + PUSH_WAIT;
+		FileContents copy = copies.get(filename);
+		while (copy != null && copy.getVersion() < version) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted waiting for " + filename);
+			}
+			copy = copies.get(filename);
+		}
+		return copy;
+	}
+
+	/**
+	 * Copies a file from the primary, subscribing to its updates.
+	 * Concurrent reads of the same file share a single copy.
+	 */
+	private FileContents fetch(String filename) throws RemoteException {
+
+		FutureTask<FileContents> copy = new FutureTask<FileContents>(() -> {
+			fetches.increment();
+			return store(filename, primary.subscribe(name, filename));
+		});
+		FutureTask<FileContents> inFlight = fetching.putIfAbsent(filename, copy);
+		if (inFlight == null) {
+			inFlight = copy;
+			try {
+				copy.run();
+			} finally {
+				fetching.remove(filename, copy);
+			}
+		}
+		try {
+			return inFlight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted copying " + filename);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RemoteException) {
+				throw (RemoteException) e.getCause();
+			}
+			throw new RemoteException("Could not copy " + filename, e.getCause());
+		}
+	}
+
+	/**
+	 * Keeps the given contents of a file unless the replica already has
+	 * newer ones, evicting the least recently read copies to stay within
+	 * capacity. Returns the copy kept.
+	 */
+	private synchronized FileContents store(String filename, FileContents contents) {
+
+		FileContents kept = copies.get(filename);
+		if (kept != null && kept.getVersion() >= contents.getVersion()) {
+			return kept;		//a push overtook the copy, or the other way round
+		}
+		//compressed once here rather than for every read
+		FileContents copy = compression ? FileContents.compressed(contents.get(), contents.getVersion()) : contents;
+		if (kept != null) {
+			used -= kept.length();
+		}
+		copies.put(filename, copy);
+		used += copy.length();
+		Iterator<Map.Entry<String, FileContents>> it = copies.entrySet().iterator();
+		while (used > capacity && it.hasNext()) {
+			Map.Entry<String, FileContents> oldest = it.next();
+			if (oldest.getKey().equals(filename)) {
+				continue;
+			}
+			used -= oldest.getValue().length();
+			it.remove();
+		}
+		notifyAll();
+		return copy;
+	}
+
+	/**
+	 * Reports the replica's reads, copies from the primary and pushes
+	 */
+	@Override
+	public synchronized String toString() {
+
+		return String.format("replica %s copies=%d bytes=%d reads=%d fetches=%d pushes=%d",
+			name, copies.size(), used, reads.sum(), fetches.sum(), pushes.sum());
+	}
+
+	//main function - creates a replica of the primary at dfs.primary, or of the shards listed in
+	//dfs.shards, and binds it to name and port for clients listing it in dfs.replicas.
+	public static void main (String args[]) {
+
+		if ( args.length != 1 ) {
+			System.err.println( "usage: java ReplicaServer port#" );
+			System.exit( -1 );
+		}
+
+		try {
+			int port = Integer.parseInt(args[0]);
+			String shards = System.getProperty("dfs.shards");
+			ServerInterface primary;
+			if (shards != null && !shards.isEmpty()) {
+				primary = new ShardedServerStub(shards.split(","), shard -> lookup(shard));
+			} else {
+				primary = lookup(System.getProperty("dfs.primary", "localhost:" + (port - 1)));
+			}
+			System.out.println("Starting replica...");
+			ReplicaServer replica = new ReplicaServer(System.getProperty("dfs.replica", "localhost:" + port), primary);
+			Naming.rebind( "rmi://localhost:" + port + "/filereplica", replica );
+			long interval = Long.getLong("dfs.metrics.interval", 0);
+			if (interval > 0) {
+				Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(
+					() -> System.out.println(replica), interval, interval, TimeUnit.MILLISECONDS);
+			}
+			System.out.println("Replica started.");
+		}
+		catch ( Exception e ) {
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+	}
+
+	//looks up the server at the given host:port
+	private static ServerInterface lookup(String server) throws RemoteException {
+
+		try {
+			return (ServerInterface) Naming.lookup("rmi://" + server + "/fileserver");
+		}
+		catch (NotBoundException | MalformedURLException e) {
+			throw new RemoteException("Server not bound at " + server, e);
+		}
+	}
+}
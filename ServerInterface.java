@@ -5,4 +5,105 @@ public interface ServerInterface extends Remote {
 	throws RemoteException;
     public boolean upload( String client, String filename, 
 			   FileContents contents ) throws RemoteException;
+    // Registers the client like download but only sends the contents if 
+    // the server's version differs from the given one, otherwise the 
+    // reply is FileContents.notModified.
+    public FileContents downloadIfModified( String client, String filename, 
+			   String mode, long version ) throws RemoteException;
+    // Downloads several files in one call, each in the given mode. The
+    // versions are the client's, -1 if unknown, and files whose version
+    // is unchanged come back as FileContents.notModified. Files that 
+    // do not exist come back as null. Other errors fail the batch, and
+    // a file of another shard fails it with WrongShardException before
+    // any file is registered.
+    public FileContents[] downloadAll( String client, String[] filenames, 
+			   String[] modes, long[] versions ) throws RemoteException;
+    // As downloadAll with every file in "r" mode, to fill the client's 
+    // cache ahead of opens.
+    public FileContents[] prefetch( String client, String[] filenames, 
+			   long[] versions ) throws RemoteException;
+    // Queues the client for ownership of a file. Returns true if it was 
+    // granted at once, otherwise the client is called back with 
+    // ownershipGranted when its turn comes. The client then downloads 
+    // the file in "w" mode without waiting.
+    public boolean requestOwnership( String client, String filename )
+	throws RemoteException;
+    // Counts that the client opened filename right after previous, null
+    // if it opened nothing before, and returns the files it is likely 
+    // to open next, the likeliest first, as many as add up to at most 
+    // budget bytes. The client prefetches them in "r" mode.
+    public String[] predictNext( String client, String previous, 
+			   String filename, long budget ) throws RemoteException;
+    // Drops the client's registration on a file it no longer caches, 
+    // or on all its files if filename is null.
+    public void release( String client, String filename )
+	throws RemoteException;
+
+    // Picks the first of the client's wire formats the server supports,
+    // such as FileContents.DEFLATE, or null to send contents as they 
+    // are. Contents sent to the client are then compressed when that 
+    // makes them smaller, and the server accepts compressed uploads.
+    public String negotiate( String client, String[] formats )
+	throws RemoteException;
+
+    // Read replicas. validate registers the client as a reader like a 
+    // download in "r" mode but only answers FileContents.notModified with
+    // the server's version and lease, the client then reads the contents
+    // from a replica. subscribe returns a file's contents to a replica, 
+    // named by the host:port it is bound at, and pushes it every update.
+    public FileContents validate( String client, String filename )
+	throws RemoteException;
+    public FileContents subscribe( String replica, String filename )
+	throws RemoteException;
+
+    // Sharding. A server of a cluster only serves the files the cluster's 
+    // ShardRing gives it, and throws WrongShardException for the others.
+    // getShards returns the members, or null if the server is not sharded.
+    public String[] getShards( ) throws RemoteException;
+    // Changes the members of the cluster. The server passes the change on
+    // to the other members and hands off the files it no longer serves.
+    public void setShards( String[] shards ) throws RemoteException;
+    // Called by the shard a file moved to before it serves the file. 
+    // Ends this server's readers and ownership of the file once the owner
+    // has written it back, returns false while that is still going on.
+    public boolean handOff( String filename, String[] shards )
+	throws RemoteException;
+
+    // Delta uploads, sending only the blocks that changed.
+    public BlockSignature getSignature( String client, String filename )
+	throws RemoteException;
+    public boolean uploadDelta( String client, String filename, 
+			   FileDelta delta ) throws RemoteException;
+
+    // Byte-range writes. lockRange returns whether the client now holds
+    // the range. Otherwise the request is queued and the client is 
+    // called back with rangeGranted once it holds the range, which it
+    // is not if the range stays taken for a while. Clients holding
+    // disjoint ranges of a file write them at the same time, while any 
+    // range is locked no client owns the file. uploadRange writes the 
+    // contents at the offset, which must lie within a range the client 
+    // holds, and returns false otherwise. unlockRange unlocks the 
+    // client's ranges within the given one.
+    public boolean lockRange( String client, String filename, long offset, 
+			   long length ) throws RemoteException;
+    public boolean uploadRange( String client, String filename, long offset, 
+			   FileContents contents ) throws RemoteException;
+    public void unlockRange( String client, String filename, long offset, 
+			   long length ) throws RemoteException;
+
+    // Chunked transfers, for files too large to send in one FileContents.
+    public TransferHandle openDownload( String client, String filename, 
+			   String mode ) throws RemoteException;
+    // As openDownload, but returns null if the server's version equals 
+    // the given one.
+    public TransferHandle openDownloadIfModified( String client, 
+			   String filename, String mode, long version ) throws RemoteException;
+    public FileContents readChunk( long transfer, long offset, int length )
+	throws RemoteException;
+    public TransferHandle openUpload( String client, String filename, 
+			   long length ) throws RemoteException;
+    public boolean writeChunk( long transfer, long offset, 
+			   FileContents chunk ) throws RemoteException;
+    public boolean commitUpload( long transfer ) throws RemoteException;
+    public void closeTransfer( long transfer ) throws RemoteException;
 }
@@ -0,0 +1,387 @@
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latencies of a file server, published as the MXBean
+ * dfs:type=FileServer,port=<port> and optionally printed every 
+ * dfs.metrics.interval milliseconds.
+ *
+ * The latencies are recorded by the server and its cached files. The
+ * cache and disk figures are read from the FileCache and the 
+ * AsyncFileWriter when asked for.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+	final LatencyHistogram readDownloads = new LatencyHistogram();
+	final LatencyHistogram writeDownloads = new LatencyHistogram();
+	final LatencyHistogram uploads = new LatencyHistogram();
+	final LatencyHistogram deltaUploads = new LatencyHistogram();
+	final LatencyHistogram chunkedUploads = new LatencyHistogram();
+	final LatencyHistogram rangeUploads = new LatencyHistogram();
+	final LatencyHistogram ownershipWaits = new LatencyHistogram();
+	final LatencyHistogram invalidations = new LatencyHistogram();
+	final LongAdder invalidationFailures = new LongAdder();
+	final LatencyHistogram writebacks = new LatencyHistogram();
+	final LongAdder writebackFailures = new LongAdder();
+	final LatencyHistogram handoffs = new LatencyHistogram();
+	final LatencyHistogram validations = new LatencyHistogram();
+	final LatencyHistogram pushes = new LatencyHistogram();
+	final LongAdder pushFailures = new LongAdder();
+	final LongAdder redirects = new LongAdder();
+	final LongAdder transitions = new LongAdder();
+	final LongAdder predictions = new LongAdder();
+
+	private Map<String, CachedFile> cache;		//the server's cached files
+	private FileCache memory;					//memory the cached files' data takes
+	private AsyncFileWriter writer;				//writes uploads to disk
+	private ObjectName name;					//name the metrics are registered under, null if they are not
+	private ScheduledExecutorService dumper;	//prints the metrics periodically, null if it does not
+
+	//Constructor - metrics of a server with the given cache, memory and writer
+	public ServerMetrics(Map<String, CachedFile> cache, FileCache memory, AsyncFileWriter writer) {
+
+		this.cache = cache;
+		this.memory = memory;
+		this.writer = writer;
+	}
+
+	/**
+	 * Returns the download latencies of the given mode
+	 */
+	LatencyHistogram downloads(String mode) {
+
+		return mode.equals("r") ? readDownloads : writeDownloads;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server and starts 
+	 * printing them if dfs.metrics.interval is set
+	 */
+	public void start(int port) {
+
+		try {
+			name = new ObjectName("dfs:type=FileServer,port=" + port);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			System.err.println("Could not register server metrics: " + e);
+			name = null;
+		}
+		long interval = Long.getLong("dfs.metrics.interval", 0);
+		if (interval > 0) {
+			dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "metrics-dump");
+				thread.setDaemon(true);
+				return thread;
+			});
+			dumper.scheduleAtFixedRate(() -> System.out.print(this), interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops printing the metrics and unregisters them
+	 */
+	public void stop() {
+
+		if (dumper != null) {
+			dumper.shutdownNow();
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// Already gone
+			}
+		}
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getReadDownloads() {
+		return readDownloads.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getWriteDownloads() {
+		return writeDownloads.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getUploads() {
+		return uploads.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getDeltaUploads() {
+		return deltaUploads.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getRangeUploads() {
+		return rangeUploads.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getChunkedUploads() {
+		return chunkedUploads.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getOwnershipWaits() {
+		return ownershipWaits.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getInvalidations() {
+		return invalidations.snapshot();
+	}
+
+	@Override
+	public long getInvalidationFailures() {
+		return invalidationFailures.sum();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getWritebacks() {
+		return writebacks.snapshot();
+	}
+
+	@Override
+	public long getWritebackFailures() {
+		return writebackFailures.sum();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getHandoffs() {
+		return handoffs.snapshot();
+	}
+
+	@Override
+	public long getRedirects() {
+		return redirects.sum();
+	}
+
+	@Override
+	public long getTransitions() {
+		return transitions.sum();
+	}
+
+	@Override
+	public long getPredictions() {
+		return predictions.sum();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getValidations() {
+		return validations.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getPushes() {
+		return pushes.snapshot();
+	}
+
+	@Override
+	public long getPushFailures() {
+		return pushFailures.sum();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getPersists() {
+		return writer.getWriteTimes().snapshot();
+	}
+
+	@Override
+	public long getPersistFailures() {
+		return writer.getFailures();
+	}
+
+	@Override
+	public int getPersistRetrying() {
+		return writer.getRetrying();
+	}
+
+	@Override
+	public long getPersistAbandoned() {
+		return writer.getAbandoned();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getJournalCommits() {
+		Journal journal = writer.getJournal();
+		return journal == null ? new LatencyHistogram().snapshot() : journal.getCommits().snapshot();
+	}
+
+	@Override
+	public long getJournalRecords() {
+		Journal journal = writer.getJournal();
+		return journal == null ? 0 : journal.getRecords();
+	}
+
+	@Override
+	public int getJournalSegments() {
+		Journal journal = writer.getJournal();
+		return journal == null ? 0 : journal.getSegments();
+	}
+
+	@Override
+	public int getDedupChunks() {
+		return CachedFile.chunkStore.getChunks();
+	}
+
+	@Override
+	public long getDedupStoredBytes() {
+		return CachedFile.chunkStore.getStoredBytes();
+	}
+
+	@Override
+	public long getDedupReferencedBytes() {
+		return CachedFile.chunkStore.getReferencedBytes();
+	}
+
+	@Override
+	public long getDedupCollected() {
+		return CachedFile.chunkStore.getCollected();
+	}
+
+	@Override
+	public int getCachedFiles() {
+		return cache.size();
+	}
+
+	@Override
+	public int getResidentFiles() {
+		return memory.getResidentFiles();
+	}
+
+	@Override
+	public long getResidentBytes() {
+		return memory.getUsed();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return memory.getHits();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return memory.getMisses();
+	}
+
+	@Override
+	public long getCacheEvictions() {
+		return memory.getEvictions();
+	}
+
+	@Override
+	public List<FileContention> getContention() {
+
+		List<FileContention> contention = new ArrayList<FileContention>();
+		for (CachedFile file : cache.values()) {
+			int readers = file.getReaderCount();
+			String owner = file.getOwnerName();
+			int queued = file.getWriterQueueDepth();
+			if (readers > 0 || owner != null || queued > 0) {
+				contention.add(new FileContention(file.getName(), readers, owner, queued, 
+					file.getAverageOwnershipWait(), file.getMaxOwnershipWait()));
+			}
+		}
+		return contention;
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder dump = new StringBuilder();
+		dump.append(String.format("--- server metrics %s%n", new Date()));
+		dump.append(String.format("download r   %s%n", getReadDownloads()));
+		dump.append(String.format("download w   %s%n", getWriteDownloads()));
+		dump.append(String.format("upload       %s%n", getUploads()));
+		dump.append(String.format("upload delta %s%n", getDeltaUploads()));
+		dump.append(String.format("upload chunk %s%n", getChunkedUploads()));
+		dump.append(String.format("upload range %s%n", getRangeUploads()));
+		dump.append(String.format("owner wait   %s%n", getOwnershipWaits()));
+		dump.append(String.format("invalidate   %s failed=%d%n", getInvalidations(), getInvalidationFailures()));
+		dump.append(String.format("writeback    %s failed=%d%n", getWritebacks(), getWritebackFailures()));
+		dump.append(String.format("handoff      %s redirected=%d%n", getHandoffs(), getRedirects()));
+		dump.append(String.format("validate     %s%n", getValidations()));
+		dump.append(String.format("push         %s failed=%d%n", getPushes(), getPushFailures()));
+		dump.append(String.format("predict      transitions=%d predicted=%d%n", getTransitions(), getPredictions()));
+		dump.append(String.format("persist      %s failed=%d retrying=%d abandoned=%d%n", getPersists(), 
+			getPersistFailures(), getPersistRetrying(), getPersistAbandoned()));
+		dump.append(String.format("journal      %s records=%d segments=%d%n", getJournalCommits(),
+			getJournalRecords(), getJournalSegments()));
+		dump.append(String.format("cache        cached=%d %s%n", getCachedFiles(), memory));
+		dump.append(String.format("dedup        chunks=%d stored=%d referenced=%d collected=%d%n", 
+			getDedupChunks(), getDedupStoredBytes(), getDedupReferencedBytes(), getDedupCollected()));
+		for (FileContention file : getContention()) {
+			dump.append(String.format("  %s%n", file));
+		}
+		return dump.toString();
+	}
+
+	/**
+	 * Readers, owner and waiting writers of one cached file
+	 */
+	public static class FileContention {
+
+		private final String name;
+		private final int readers;
+		private final String owner;
+		private final int queued;
+		private final double averageWait;
+		private final double maxWait;
+
+		@ConstructorProperties({"name", "readers", "owner", "queued", "averageWait", "maxWait"})
+		public FileContention(String name, int readers, String owner, int queued, 
+				double averageWait, double maxWait) {
+
+			this.name = name;
+			this.readers = readers;
+			this.owner = owner;
+			this.queued = queued;
+			this.averageWait = averageWait;
+			this.maxWait = maxWait;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getReaders() {
+			return readers;
+		}
+
+		public String getOwner() {
+			return owner;
+		}
+
+		public int getQueued() {
+			return queued;
+		}
+
+		public double getAverageWait() {
+			return averageWait;
+		}
+
+		public double getMaxWait() {
+			return maxWait;
+		}
+
+		@Override
+		public String toString() {
+
+			return String.format("%s readers=%d owner=%s queued=%d avgWait=%.1fms maxWait=%.1fms", 
+				name, readers, owner, queued, averageWait, maxWait);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+import java.util.List;
+
+/**
+ * Management interface of the file server's metrics. Durations are in
+ * milliseconds.
+ */
+public interface ServerMetricsMXBean {
+
+	// Downloads by mode, chunked ones counted by their opening call
+	LatencyHistogram.Snapshot getReadDownloads();
+	LatencyHistogram.Snapshot getWriteDownloads();
+
+	// Uploads by how the contents were sent
+	LatencyHistogram.Snapshot getUploads();
+	LatencyHistogram.Snapshot getDeltaUploads();
+	LatencyHistogram.Snapshot getChunkedUploads();
+	LatencyHistogram.Snapshot getRangeUploads();
+
+	// Time addWriter waited for ownership
+	LatencyHistogram.Snapshot getOwnershipWaits();
+
+	// Callbacks to clients
+	LatencyHistogram.Snapshot getInvalidations();
+	long getInvalidationFailures();
+	LatencyHistogram.Snapshot getWritebacks();
+	long getWritebackFailures();
+
+	// Files handed off to other shards, and requests for files of 
+	// other shards
+	LatencyHistogram.Snapshot getHandoffs();
+	long getRedirects();
+
+	// Reads registered for clients reading from replicas, and updates
+	// pushed to replicas
+	LatencyHistogram.Snapshot getValidations();
+	LatencyHistogram.Snapshot getPushes();
+	long getPushFailures();
+
+	// Opens counted as following the client's previous open, and files
+	// predicted for clients to prefetch
+	long getTransitions();
+	long getPredictions();
+
+	// Batches of uploads written to disk, attempts to write a file that
+	// failed, failed writes waiting to be retried and writes given up
+	// at shutdown
+	LatencyHistogram.Snapshot getPersists();
+	long getPersistFailures();
+	int getPersistRetrying();
+	long getPersistAbandoned();
+
+	// Batches of uploads synced to the journal, the records written
+	// and the segments still holding unwritten uploads, empty and zero
+	// without a journal
+	LatencyHistogram.Snapshot getJournalCommits();
+	long getJournalRecords();
+	int getJournalSegments();
+
+	// Files cached and the memory their data takes
+	int getCachedFiles();
+	int getResidentFiles();
+	long getResidentBytes();
+	long getCacheHits();
+	long getCacheMisses();
+	long getCacheEvictions();
+
+	// Chunks of the data of files with dedup storage, the bytes they
+	// take and the bytes of the data sharing them
+	int getDedupChunks();
+	long getDedupStoredBytes();
+	long getDedupReferencedBytes();
+	long getDedupCollected();
+
+	// Files with readers, an owner or writers waiting
+	List<ServerMetrics.FileContention> getContention();
+}
@@ -0,0 +1,112 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Assigns file names to the servers of a sharded cluster by consistent
+ * hashing. Each shard, named by the host:port its server is bound at,
+ * is placed at many points of a ring of 64 bit hashes, and a file
+ * belongs to the first shard at or after the hash of its name.
+ *
+ * When a shard joins it takes over only the files between its points
+ * and the points before them, and when one leaves only its files move,
+ * to the next shards around the ring. Rings are immutable, a change of
+ * membership makes a new ring.
+ */
+public class ShardRing {
+
+	static final int POINTS = Integer.getInteger("dfs.shard.points", 128);	//points of each shard on the ring
+
+	private final List<String> shards;						//members, sorted
+	private final TreeMap<Long, String> points;				//shard at each point of the ring
+
+	//Constructor - a ring of the given shards
+	public ShardRing(Collection<String> shards) {
+
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("A ring needs at least one shard");
+		}
+		this.shards = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(shards)));
+		points = new TreeMap<Long, String>();
+		for (String shard : this.shards) {
+			for (int i = 0; i < POINTS; i++) {
+				points.put(hash(shard + "#" + i), shard);
+			}
+		}
+	}
+
+	//Constructor - a ring of the given shards
+	public ShardRing(String... shards) {
+
+		this(Arrays.asList(shards));
+	}
+
+	/**
+	 * Returns the shard the given file belongs to
+	 */
+	public String owner(String filename) {
+
+		Map.Entry<Long, String> point = points.ceilingEntry(hash(filename));
+		return point != null ? point.getValue() : points.firstEntry().getValue();
+	}
+
+	/**
+	 * Returns a ring with the given shard added
+	 */
+	public ShardRing with(String shard) {
+
+		List<String> members = new ArrayList<String>(shards);
+		members.add(shard);
+		return new ShardRing(members);
+	}
+
+	/**
+	 * Returns a ring with the given shard removed
+	 */
+	public ShardRing without(String shard) {
+
+		List<String> members = new ArrayList<String>(shards);
+		members.remove(shard);
+		return new ShardRing(members);
+	}
+
+	/**
+	 * Getter for the shards of the ring, sorted
+	 */
+	public List<String> getShards() {
+
+		return shards;
+	}
+
+	/**
+	 * Whether the ring has the same shards as the given list
+	 */
+	public boolean hasShards(String[] members) {
+
+		return shards.equals(new ArrayList<String>(new TreeSet<String>(Arrays.asList(members))));
+	}
+
+	/*
+	 * First 8 bytes of the MD5 digest, which spreads similar names evenly
+	 */
+	private static long hash(String key) {
+
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		return String.join(",", shards);
+	}
+}
@@ -0,0 +1,375 @@
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The client side of a sharded cluster, a ServerInterface that sends
+ * each call about a file to the shard the file belongs to.
+ *
+ * Files are placed by the cluster's ShardRing. Uploads and releases go
+ * to the shard that served the file's last download, which is the one
+ * holding the client's ownership even if the file has moved since. A
+ * shard asked about a file it does not serve throws WrongShardException
+ * with the current members, the stub then rebuilds its ring and sends
+ * the call again. Chunked transfers get ids of their own, mapped to
+ * the shard and id of the transfer.
+ */
+public class ShardedServerStub implements ServerInterface {
+
+	static final int MAX_REDIRECTS = 3;				//times a call is sent again after WrongShardException
+
+	// Connects to a shard by its host:port
+	public interface Connector {
+		ServerInterface connect(String shard) throws IOException;
+	}
+
+	// A call to one shard
+	private interface ShardCall<T> {
+		T call(ServerInterface server) throws RemoteException;
+	}
+
+	// A chunked transfer opened on a shard
+	private static class Route {
+		ServerInterface server;
+		long id;
+
+		Route(ServerInterface server, long id) {
+			this.server = server;
+			this.id = id;
+		}
+	}
+
+	private Connector connector;								//connects to shards not yet connected
+	private volatile ShardRing ring;							//members of the cluster
+	private ConcurrentHashMap<String, ServerInterface> servers;	//connected shards by name
+	private ConcurrentHashMap<String, String> routes;			//shard that last served each file
+	private ConcurrentHashMap<Long, Route> transfers;			//open chunked transfers by the ids given out
+	private AtomicLong nextTransferId;							//id of the next chunked transfer
+
+	//Constructor - routes calls to the given shards, connecting to them with the given connector
+	public ShardedServerStub(String[] shards, Connector connector) {
+
+		this.connector = connector;
+		ring = new ShardRing(shards);
+		servers = new ConcurrentHashMap<String, ServerInterface>();
+		routes = new ConcurrentHashMap<String, String>();
+		transfers = new ConcurrentHashMap<Long, Route>();
+		nextTransferId = new AtomicLong();
+	}
+
+	/**
+	 * Returns the shard with the given name, connecting to it on first use
+	 */
+	private ServerInterface server(String shard) throws RemoteException {
+
+		ServerInterface server = servers.get(shard);
+		if (server == null) {
+			try {
+				server = connector.connect(shard);
+			} catch (RemoteException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new RemoteException("Could not connect to shard " + shard, e);
+			}
+			ServerInterface raced = servers.putIfAbsent(shard, server);
+			if (raced != null) {
+				server = raced;
+			}
+		}
+		return server;
+	}
+
+	/*
+	 * Sends a call about a file to the shard the ring gives it, or to the
+	 * shard that last served it if follow is set, and remembers the shard
+	 * that answered
+	 */
+	private <T> T route(String filename, boolean follow, ShardCall<T> call) throws RemoteException {
+
+		for (int redirects = 0; ; redirects++) {
+			String shard = follow ? routes.get(filename) : null;
+			if (shard == null) {
+				shard = ring.owner(filename);
+			}
+			try {
+				T result = call.call(server(shard));
+				routes.put(filename, shard);
+				return result;
+			} catch (RemoteException e) {
+				WrongShardException wrongShard = WrongShardException.find(e);
+				if (wrongShard == null || redirects == MAX_REDIRECTS) {
+					throw e;
+				}
+				routes.remove(filename, shard);
+				setRing(wrongShard.getShards());
+			}
+		}
+	}
+
+	/*
+	 * Replaces the ring with one of the given members, if they changed
+	 */
+	private void setRing(String[] shards) {
+
+		if (!ring.hasShards(shards)) {
+			ring = new ShardRing(shards);
+		}
+	}
+
+	@Override
+	public FileContents download(String client, String filename, String mode) throws RemoteException {
+		return route(filename, false, server -> server.download(client, filename, mode));
+	}
+
+	@Override
+	public FileContents downloadIfModified(String client, String filename, String mode, long version)
+			throws RemoteException {
+		return route(filename, false, server -> server.downloadIfModified(client, filename, mode, version));
+	}
+
+	@Override
+	public boolean upload(String client, String filename, FileContents contents) throws RemoteException {
+		return route(filename, true, server -> server.upload(client, filename, contents));
+	}
+
+	@Override
+	public boolean requestOwnership(String client, String filename) throws RemoteException {
+		return route(filename, false, server -> server.requestOwnership(client, filename));
+	}
+
+	@Override
+	public FileContents validate(String client, String filename) throws RemoteException {
+		return route(filename, false, server -> server.validate(client, filename));
+	}
+
+	@Override
+	public FileContents subscribe(String replica, String filename) throws RemoteException {
+		return route(filename, false, server -> server.subscribe(replica, filename));
+	}
+
+	@Override
+	public BlockSignature getSignature(String client, String filename) throws RemoteException {
+		return route(filename, true, server -> server.getSignature(client, filename));
+	}
+
+	@Override
+	public boolean uploadDelta(String client, String filename, FileDelta delta) throws RemoteException {
+		return route(filename, true, server -> server.uploadDelta(client, filename, delta));
+	}
+
+	@Override
+	public String[] predictNext(String client, String previous, String filename, long budget) throws RemoteException {
+		return route(filename, false, server -> server.predictNext(client, previous, filename, budget));
+	}
+
+	@Override
+	public boolean lockRange(String client, String filename, long offset, long length) throws RemoteException {
+		return route(filename, false, server -> server.lockRange(client, filename, offset, length));
+	}
+
+	@Override
+	public boolean uploadRange(String client, String filename, long offset, FileContents contents) throws RemoteException {
+		return route(filename, true, server -> server.uploadRange(client, filename, offset, contents));
+	}
+
+	@Override
+	public void unlockRange(String client, String filename, long offset, long length) throws RemoteException {
+		route(filename, true, server -> {
+			server.unlockRange(client, filename, offset, length);
+			return null;
+		});
+	}
+
+	@Override
+	public void release(String client, String filename) throws RemoteException {
+
+		if (filename != null) {
+			String shard = routes.remove(filename);
+			server(shard != null ? shard : ring.owner(filename)).release(client, filename);
+			return;
+		}
+		//every shard the client may be registered with
+		routes.clear();
+		for (ServerInterface server : servers.values()) {
+			server.release(client, null);
+		}
+	}
+
+	/**
+	 * Downloads a batch as one downloadAll call to each shard holding
+	 * some of its files
+	 */
+	@Override
+	public FileContents[] downloadAll(String client, String[] filenames, String[] modes, long[] versions)
+			throws RemoteException {
+
+		return downloadAll(client, filenames, modes, versions, 0);
+	}
+
+	/*
+	 * As above, a batch a shard refused because some of its files belong
+	 * to another shard is split again over the members that shard knows of
+	 */
+	private FileContents[] downloadAll(String client, String[] filenames, String[] modes, long[] versions, 
+			int redirects) throws RemoteException {
+
+		Map<String, List<Integer>> byShard = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < filenames.length; i++) {
+			byShard.computeIfAbsent(ring.owner(filenames[i]), shard -> new ArrayList<Integer>()).add(i);
+		}
+		FileContents[] contents = new FileContents[filenames.length];
+		for (Map.Entry<String, List<Integer>> shard : byShard.entrySet()) {
+			List<Integer> batch = shard.getValue();
+			String[] names = new String[batch.size()];
+			String[] batchModes = new String[batch.size()];
+			long[] batchVersions = new long[batch.size()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = filenames[batch.get(i)];
+				batchModes[i] = modes[batch.get(i)];
+				batchVersions[i] = versions[batch.get(i)];
+			}
+			FileContents[] answered;
+			try {
+				answered = server(shard.getKey()).downloadAll(client, names, batchModes, batchVersions);
+			} catch (RemoteException e) {
+				WrongShardException wrongShard = WrongShardException.find(e);
+				if (wrongShard == null || redirects == MAX_REDIRECTS) {
+					throw e;
+				}
+				setRing(wrongShard.getShards());
+				//routed again, the routes were noted by the batches that answered
+				answered = downloadAll(client, names, batchModes, batchVersions, redirects + 1);
+				for (int i = 0; i < names.length; i++) {
+					contents[batch.get(i)] = answered[i];
+				}
+				continue;
+			}
+			for (int i = 0; i < names.length; i++) {
+				contents[batch.get(i)] = answered[i];
+				if (answered[i] != null) {
+					routes.put(names[i], shard.getKey());
+				}
+			}
+		}
+		return contents;
+	}
+
+	@Override
+	public FileContents[] prefetch(String client, String[] filenames, long[] versions) throws RemoteException {
+
+		String[] modes = new String[filenames.length];
+		Arrays.fill(modes, "r");
+		return downloadAll(client, filenames, modes, versions);
+	}
+
+	/**
+	 * Agrees on a format with every shard, returning it only if all of
+	 * them agreed to it
+	 */
+	@Override
+	public String negotiate(String client, String[] formats) throws RemoteException {
+
+		String agreed = null;
+		boolean first = true;
+		for (String shard : ring.getShards()) {
+			String format = server(shard).negotiate(client, formats);
+			agreed = first || Objects.equals(agreed, format) ? format : null;
+			first = false;
+		}
+		return agreed;
+	}
+
+	@Override
+	public String[] getShards() throws RemoteException {
+		return ring.getShards().toArray(new String[0]);
+	}
+
+	@Override
+	public void setShards(String[] shards) throws RemoteException {
+
+		//any member passes the change on to the others
+		server(ring.getShards().get(0)).setShards(shards);
+		setRing(shards);
+	}
+
+	@Override
+	public boolean handOff(String filename, String[] shards) throws RemoteException {
+		throw new RemoteException("Handoffs are between shards");
+	}
+
+	@Override
+	public TransferHandle openDownload(String client, String filename, String mode) throws RemoteException {
+		return route(filename, false, server -> addTransfer(server, server.openDownload(client, filename, mode)));
+	}
+
+	@Override
+	public TransferHandle openDownloadIfModified(String client, String filename, String mode, long version)
+			throws RemoteException {
+		return route(filename, false, server ->
+			addTransfer(server, server.openDownloadIfModified(client, filename, mode, version)));
+	}
+
+	@Override
+	public TransferHandle openUpload(String client, String filename, long length) throws RemoteException {
+		return route(filename, true, server -> addTransfer(server, server.openUpload(client, filename, length)));
+	}
+
+	@Override
+	public FileContents readChunk(long transfer, long offset, int length) throws RemoteException {
+
+		Route route = getTransfer(transfer);
+		return route.server.readChunk(route.id, offset, length);
+	}
+
+	@Override
+	public boolean writeChunk(long transfer, long offset, FileContents chunk) throws RemoteException {
+
+		Route route = getTransfer(transfer);
+		return route.server.writeChunk(route.id, offset, chunk);
+	}
+
+	@Override
+	public boolean commitUpload(long transfer) throws RemoteException {
+
+		Route route = getTransfer(transfer);
+		return route.server.commitUpload(route.id);
+	}
+
+	@Override
+	public void closeTransfer(long transfer) throws RemoteException {
+
+		Route route = transfers.remove(transfer);
+		if (route != null) {
+			route.server.closeTransfer(route.id);
+		}
+	}
+
+	/*
+	 * Gives a transfer opened on a shard an id of the stub's own, since
+	 * shards number their transfers independently
+	 */
+	private TransferHandle addTransfer(ServerInterface server, TransferHandle handle) {
+
+		if (handle == null) {
+			return null;
+		}
+		long id = nextTransferId.incrementAndGet();
+		transfers.put(id, new Route(server, handle.getId()));
+		return new TransferHandle(id, handle.getLength(), handle.getChunkSize(), handle.getVersion(),
+			handle.getLease());
+	}
+
+	/*
+	 * Looks up an open transfer by the id the stub gave it
+	 */
+	private Route getTransfer(long transfer) throws RemoteException {
+
+		Route route = transfers.get(transfer);
+		if (route == null) {
+			throw new RemoteException("No such transfer: " + transfer);
+		}
+		return route;
+	}
+}
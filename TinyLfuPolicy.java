@@ -0,0 +1,179 @@
+/*
+*	@author Tiana Greisel and Garrett Singletary
+*	@title	CSS434 - Program 4 Distributed File System
+*	
+*/
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * W-TinyLFU eviction. Newly loaded files enter a small LRU window. 
+ * When the window is full its oldest file competes with the oldest 
+ * file of the main LRU region and whichever has been accessed less 
+ * often, as estimated by a count-min sketch of recent accesses, is 
+ * evicted. A burst of one-off reads therefore cannot flush files that
+ * are read again and again.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+	static final int WINDOW_PERCENT = 1;		//share of the files in memory kept in the window
+	static final int SKETCH_ROWS = 4;			//hash functions of the frequency sketch
+	static final int MAX_COUNT = 15;			//largest count the sketch records
+
+	private LinkedHashMap<String, Boolean> window;	//recently loaded files, least recently used first
+	private LinkedHashMap<String, Boolean> main;	//files admitted from the window, least recently used first
+	private int[][] sketch;						//count-min sketch of access frequencies
+	private int mask;							//mask of a sketch row index
+	private int additions;						//accesses recorded since the sketch was last aged
+	private int sampleSize;						//accesses after which all counts are halved
+
+	//Constructor - width is the number of counters per sketch row, rounded up to a power of two
+	public TinyLfuPolicy(int width) {
+
+		int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+		window = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+		main = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+		sketch = new int[SKETCH_ROWS][size];
+		mask = size - 1;
+		sampleSize = 10 * size;
+	}
+
+	//Constructor - sized for a few thousand files in memory
+	public TinyLfuPolicy() {
+
+		this(4096);
+	}
+
+	@Override
+	public void add(String name) {
+
+		increment(name);
+		window.put(name, Boolean.TRUE);
+	}
+
+	@Override
+	public void access(String name) {
+
+		increment(name);
+		if (window.get(name) == null) {
+			main.get(name);
+		}
+	}
+
+	@Override
+	public void remove(String name) {
+
+		if (window.remove(name) == null) {
+			main.remove(name);
+		}
+	}
+
+	@Override
+	public String victim(Predicate<String> evictable) {
+
+		String candidate = eldest(window, evictable);
+		String incumbent = eldest(main, evictable);
+		if (candidate == null) {
+			return incumbent;
+		}
+		int windowMax = Math.max(1, (window.size() + main.size()) * WINDOW_PERCENT / 100);
+		if (incumbent == null || window.size() <= windowMax) {
+			//nothing to compete with, or the window is within its share
+			return incumbent != null ? incumbent : candidate;
+		}
+		//the window is over its share, its oldest file competes for a place in main
+		if (frequency(candidate) > frequency(incumbent)) {
+			window.remove(candidate);
+			main.put(candidate, Boolean.TRUE);
+			return incumbent;
+		}
+		return candidate;
+	}
+
+	/**
+	 * Orders the files by their estimated access frequency, the most 
+	 * recently used first among files accessed equally often
+	 */
+	@Override
+	public List<String> hottest() {
+
+		List<String> hottest = new ArrayList<String>(main.keySet());
+		hottest.addAll(window.keySet());
+		Collections.reverse(hottest);
+		//stable, so recency breaks ties
+		hottest.sort(Comparator.comparingInt(this::frequency).reversed());
+		return hottest;
+	}
+
+	/**
+	 * Returns the least recently used evictable file of a region
+	 */
+	private static String eldest(LinkedHashMap<String, Boolean> region, Predicate<String> evictable) {
+
+		for (String name : region.keySet()) {
+			if (evictable.test(name)) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records an access in the sketch, halving all counts once the 
+	 * sample is full so old popularity fades
+	 */
+	private void increment(String name) {
+
+		int hash = spread(name.hashCode());
+		for (int row = 0; row < SKETCH_ROWS; row++) {
+			int index = index(hash, row);
+			if (sketch[row][index] < MAX_COUNT) {
+				sketch[row][index]++;
+			}
+		}
+		if (++additions >= sampleSize) {
+			for (int[] counters : sketch) {
+				for (int i = 0; i < counters.length; i++) {
+					counters[i] >>>= 1;
+				}
+			}
+			additions /= 2;
+		}
+	}
+
+	/**
+	 * Estimates how often a file was accessed recently
+	 */
+	private int frequency(String name) {
+
+		int hash = spread(name.hashCode());
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < SKETCH_ROWS; row++) {
+			frequency = Math.min(frequency, sketch[row][index(hash, row)]);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Index of a hash in a sketch row, each row using a different seed
+	 */
+	private int index(int hash, int row) {
+
+		int h = (hash + row * 0x2545F491) * 0x9E3779B9;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+	/**
+	 * Mixes the bits of a hash code
+	 */
+	private static int spread(int hash) {
+
+		hash ^= hash >>> 17;
+		hash *= 0xed5ad4bb;
+		hash ^= hash >>> 11;
+		hash *= 0xac4c1b51;
+		return hash ^ (hash >>> 15);
+	}
+}
@@ -0,0 +1,252 @@
+/*
+*	@author Tiana Greisel and Garrett Singletary
+*	@title	CSS434 - Program 4 Distributed File System
+*	
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Server side state of a chunked transfer of a cached file.
+ * 
+ * A download reads from a snapshot of the file taken when the transfer
+ * was opened, so chunks stay consistent if the file is updated during 
+ * the transfer. An upload writes its chunks to a staging file that 
+ * replaces the cached file when the upload is committed.
+ */
+public class Transfer {
+
+	private long id;						//id of the transfer
+	private CachedFile file;				//file being transferred
+	private String client;					//name of the client doing the transfer
+	private long length;					//length of the file being transferred
+	private long version;					//version of the file being downloaded, read before the contents
+	private ByteBuffer body;				//snapshot of the contents of a file being downloaded
+	private FileChannel channel;			//channel of a file on disk being downloaded, or of the staging file
+	private File staging;					//staging file of an upload, null for downloads
+	private TreeMap<Long, Long> written;	//ranges of an upload written so far, end by start, disjoint and not touching
+	private volatile long lastAccess;		//time of the last chunk transferred, used to expire abandoned transfers
+
+	/**
+	 * Opens a download of the given file
+	 */
+	public static Transfer openDownload(long id, CachedFile file, String client) throws IOException {
+
+		Transfer transfer = new Transfer(id, file, client);
+		transfer.version = file.getVersion();
+		transfer.body = file.getBody();
+		if (transfer.body != null) {
+			transfer.length = transfer.body.remaining();
+		} else {
+			//keeps reading the old contents even if the file is replaced
+			transfer.channel = FileChannel.open(file.getFile().toPath(), StandardOpenOption.READ);
+			transfer.length = transfer.channel.size();
+		}
+		return transfer;
+	}
+
+	/**
+	 * Opens an upload of the given length to the given file
+	 */
+	public static Transfer openUpload(long id, CachedFile file, String client, long length) throws IOException {
+
+		Transfer transfer = new Transfer(id, file, client);
+		transfer.length = length;
+		transfer.written = new TreeMap<Long, Long>();
+		File dir = file.getFile().getParentFile();
+		transfer.staging = new File(dir, "." + file.getName() + "." + id + ".part");
+		transfer.channel = FileChannel.open(transfer.staging.toPath(), StandardOpenOption.CREATE, 
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		return transfer;
+	}
+
+	//Constructor
+	private Transfer(long id, CachedFile file, String client) {
+
+		this.id = id;
+		this.file = file;
+		this.client = client;
+		lastAccess = System.currentTimeMillis();
+	}
+
+	/**
+	 * Reads a chunk of the file being downloaded. Chunks of a snapshot 
+	 * are views of it rather than copies.
+	 */
+	public ByteBuffer read(long offset, int size) throws IOException {
+
+		if (staging != null) {
+			throw new IOException("Transfer " + id + " is an upload");
+		}
+		lastAccess = System.currentTimeMillis();
+		//clip the chunk to the end of the file
+		int count = (int) Math.max(0, Math.min(size, length - offset));
+		if (offset < 0 || count == 0) {
+			return ByteBuffer.allocate(0);
+		}
+		if (body != null) {
+			ByteBuffer chunk = body.duplicate();
+			chunk.position((int) offset);
+			chunk.limit((int) offset + count);
+			return chunk.slice();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(count);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException("File shrank during transfer");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Writes a chunk of the file being uploaded
+	 */
+	public void write(long offset, byte[] chunk) throws IOException {
+
+		write(offset, ByteBuffer.wrap(chunk));
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer as a chunk of the file being uploaded
+	 */
+	public void write(long offset, ByteBuffer chunk) throws IOException {
+
+		if (staging == null) {
+			throw new IOException("Transfer " + id + " is a download");
+		}
+		if (offset < 0 || offset + chunk.remaining() > length) {
+			throw new IOException("Chunk outside of the uploaded file");
+		}
+		lastAccess = System.currentTimeMillis();
+		ByteBuffer buffer = chunk.duplicate();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, offset + buffer.position() - chunk.position());
+		}
+		markWritten(offset, offset + chunk.remaining());
+	}
+
+	/*
+	 * Adds a range to the ranges written, merging it with those it 
+	 * overlaps or touches. Chunks may be written again when a client retries.
+	 */
+	private synchronized void markWritten(long start, long end) {
+
+		if (start == end) {
+			return;
+		}
+		Map.Entry<Long, Long> before = written.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		Map.Entry<Long, Long> after = written.ceilingEntry(start);
+		while (after != null && after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			written.remove(after.getKey());
+			after = written.ceilingEntry(start);
+		}
+		written.put(start, end);
+	}
+
+	/**
+	 * Returns the number of bytes of an upload written so far
+	 */
+	public synchronized long getWrittenBytes() {
+
+		long total = 0;
+		for (Map.Entry<Long, Long> range : written.entrySet()) {
+			total += range.getValue() - range.getKey();
+		}
+		return total;
+	}
+
+	/**
+	 * Completes an upload by replacing the cached file with the staging file
+	 */
+	public boolean commit() throws IOException {
+
+		if (staging == null) {
+			throw new IOException("Transfer " + id + " is a download");
+		}
+		//a skipped or lost chunk would leave a hole of zeros in the file
+		long received = getWrittenBytes();
+		if (received != length) {
+			throw new IOException("Upload incomplete, " + received + " of " + length + " bytes written");
+		}
+		channel.force(true);
+		channel.close();
+		return file.update(client, staging);
+	}
+
+	/**
+	 * Releases the transfer's resources, discarding an uncommitted upload
+	 */
+	public void close() {
+
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (staging != null) {
+			staging.delete();
+		}
+	}
+
+	/**
+	 * Getter for the transfer id
+	 */
+	public long getId() {
+
+		return id;
+	}
+
+	/**
+	 * Getter for the cached file being transferred
+	 */
+	public CachedFile getFile() {
+
+		return file;
+	}
+
+	/**
+	 * Getter for the name of the client doing the transfer
+	 */
+	public String getClient() {
+
+		return client;
+	}
+
+	/**
+	 * Getter for the length of the file being transferred
+	 */
+	public long getLength() {
+
+		return length;
+	}
+
+	/**
+	 * Getter for the version of the file being downloaded
+	 */
+	public long getVersion() {
+
+		return version;
+	}
+
+	/**
+	 * Getter for the time the transfer was last used
+	 */
+	public long getLastAccess() {
+
+		return lastAccess;
+	}
+}
@@ -0,0 +1,43 @@
+/*
+*   @author Tiana Greisel and Garrett Singletary
+*   @title  CSS434 - Program 4 Distributed File System
+*   
+*/
+
+import java.io.*;
+
+/**
+ * Identifies a chunked transfer opened on the server. The client reads 
+ * or writes the file in chunks of at most the given chunk size using 
+ * the transfer's id.
+ */
+public class TransferHandle implements Serializable {
+    private long id;            //id of the transfer on the server
+    private long length;        //total length of the file being transferred
+    private int chunkSize;      //largest chunk the server will transfer in one call
+    private long version;       //server version of the file being transferred
+    private long lease;         //milliseconds a read copy stays valid, 0 until called back
+    public TransferHandle( long id, long length, int chunkSize, long version, 
+			   long lease ) {
+	this.id = id;
+	this.length = length;
+	this.chunkSize = chunkSize;
+	this.version = version;
+	this.lease = lease;
+    }
+    public long getId( ) {
+	return id;
+    }
+    public long getLength( ) {
+	return length;
+    }
+    public int getChunkSize( ) {
+	return chunkSize;
+    }
+    public long getVersion( ) {
+	return version;
+    }
+    public long getLease( ) {
+	return lease;
+    }
+}
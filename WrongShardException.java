@@ -0,0 +1,41 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by a shard asked about a file that belongs to another shard.
+ * It carries the shards the server knows of, so the client can route
+ * the call again without asking for them.
+ */
+public class WrongShardException extends RemoteException {
+
+	private String[] shards;			//members of the cluster as the server knows it
+
+	//Constructor
+	public WrongShardException(String message, String[] shards) {
+
+		super(message);
+		this.shards = shards;
+	}
+
+	/**
+	 * Getter for the members of the cluster
+	 */
+	public String[] getShards() {
+
+		return shards;
+	}
+
+	/**
+	 * Returns the WrongShardException a call failed with, which RMI 
+	 * delivers wrapped in a ServerException, or null if it failed 
+	 * for another reason
+	 */
+	static WrongShardException find(Throwable e) {
+
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof WrongShardException) {
+				return (WrongShardException) cause;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,127 @@
+import java.io.*;
+import java.rmi.*;
+import java.rmi.registry.*;
+import java.rmi.server.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A file server in the benchmark's process with its own registry, and
+ * headless clients of it. Clients reach the server through its RMI stub
+ * and the server calls clients back through theirs, so every call goes 
+ * over a loopback connection as it would between machines. Clients are
+ * not bound in the registry, since every client binds the same name, 
+ * their stubs are handed to the server's stub cache instead.
+ *
+ * With dfs.transport=nio the clients reach the server through its NIO
+ * transport, on the next port, instead.
+ */
+public class BenchFixture implements bench.Fixture {
+
+	private int port;											//port of the registry and server
+	private Registry registry;									//registry the server is bound in
+	private FileServer server;									//the server
+	private ServerInterface stub;								//the server as clients reach it
+	private ConcurrentHashMap<String, HeadlessClient> clients;	//headless clients by name
+	private ConcurrentHashMap<String, Long> sizes;				//sizes of the files created, by name
+
+	//Constructor - starts the server on the port given by dfs.bench.port
+	public BenchFixture() throws Exception {
+
+		port = Integer.getInteger("dfs.bench.port", 23460);
+		//bound callbacks as FileServer.main does
+		if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+			System.setProperty("sun.rmi.transport.tcp.responseTimeout", 
+				System.getProperty("dfs.callback.timeout", "2000"));
+		}
+		new File("tmp").mkdirs();
+		registry = LocateRegistry.createRegistry(port);
+		server = new FileServer(port);
+		Naming.rebind("rmi://localhost:" + port + "/fileserver", server);
+		stub = (ServerInterface) Naming.lookup("rmi://localhost:" + port + "/fileserver");
+		if (System.getProperty("dfs.transport", "rmi").equals("nio")) {
+			server.startNioTransport(port + 1);
+			stub = new NioServerStub("localhost", port + 1, stub);
+		}
+		clients = new ConcurrentHashMap<String, HeadlessClient>();
+		sizes = new ConcurrentHashMap<String, Long>();
+	}
+
+	@Override
+	public String createFile(long size) throws IOException {
+
+		String name = "bench-" + size + ".txt";
+		//lines of random lower case words, so the file compresses like text does
+		Random random = new Random(size);
+		byte[] block = new byte[64 * 1024];
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream("tmp/" + name))) {
+			long remaining = size;
+			while (remaining > 0) {
+				for (int i = 0; i < block.length; i++) {
+					int next = random.nextInt(32);
+					block[i] = (byte) (next < 26 ? 'a' + next : next < 31 ? ' ' : '\n');
+				}
+				int count = (int) Math.min(block.length, remaining);
+				out.write(block, 0, count);
+				remaining -= count;
+			}
+		}
+		sizes.put(name, size);
+		return name;
+	}
+
+	@Override
+	public void addClient(String name) throws RemoteException {
+
+		HeadlessClient client = new HeadlessClient(name, stub);
+		clients.put(name, client);
+		server.stubs.add(new ClientProxy(name, (ClientInterface) RemoteObject.toStub(client)));
+	}
+
+	@Override
+	public long download(String client, String filename, String mode) throws RemoteException {
+
+		if (sizes.getOrDefault(filename, 0L) > CachedFile.MAX_HEAP_SIZE) {
+			return clients.get(client).downloadChunked(filename, mode);
+		}
+		return clients.get(client).download(filename, mode);
+	}
+
+	@Override
+	public boolean requestOwnership(String client, String filename) throws RemoteException {
+
+		return clients.get(client).requestOwnership(filename);
+	}
+
+	@Override
+	public boolean upload(String client, String filename, byte[] data) throws RemoteException {
+
+		return clients.get(client).upload(filename, data);
+	}
+
+	@Override
+	public int getInvalidations(String client) {
+
+		return clients.get(client).getInvalidations();
+	}
+
+	/**
+	 * Stops the clients and the server and deletes the files created
+	 */
+	@Override
+	public void close() throws Exception {
+
+		for (HeadlessClient client : clients.values()) {
+			client.close();
+		}
+		if (stub instanceof NioServerStub) {
+			((NioServerStub) stub).close();
+		}
+		server.shutdown();
+		UnicastRemoteObject.unexportObject(server, true);
+		UnicastRemoteObject.unexportObject(registry, true);
+		for (String name : sizes.keySet()) {
+			new File("tmp/" + name).delete();
+		}
+	}
+}
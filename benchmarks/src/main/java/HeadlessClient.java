@@ -0,0 +1,137 @@
+import java.rmi.*;
+import java.rmi.server.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client of the file server without a local cache or an editor, for
+ * benchmarks. It keeps what it downloads in "w" mode in memory and 
+ * answers a writeback by uploading it, like FileClient it answers at 
+ * once and uploads from another thread.
+ */
+public class HeadlessClient extends UnicastRemoteObject implements ClientInterface {
+
+	private String name;								//name the client is known to the server by
+	private ServerInterface server;						//the file server
+	private boolean compressed;							//server agreed to compressed contents
+	private ConcurrentHashMap<String, byte[]> owned;	//contents of files downloaded in "w" mode
+	private AtomicInteger invalidations;				//invalidations received
+	private ExecutorService uploads;					//uploads answering writebacks
+
+	//Constructor - creates a client of the given server, negotiating compression like FileClient
+	public HeadlessClient(String name, ServerInterface server) throws RemoteException {
+
+		this.name = name;
+		this.server = server;
+		owned = new ConcurrentHashMap<String, byte[]>();
+		invalidations = new AtomicInteger();
+		uploads = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "headless-writeback-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (Boolean.parseBoolean(System.getProperty("dfs.compress", "true"))) {
+			compressed = FileContents.DEFLATE.equals(server.negotiate(name, new String[] {FileContents.DEFLATE}));
+		}
+	}
+
+	/**
+	 * Downloads a file in one transfer, returns the number of bytes received
+	 */
+	public long download(String filename, String mode) throws RemoteException {
+
+		byte[] data = server.download(name, filename, mode).get();
+		if (mode.equals("w")) {
+			owned.put(filename, data);
+		}
+		return data.length;
+	}
+
+	/**
+	 * Downloads a file one chunk at a time, returns the number of bytes 
+	 * received. The contents are not kept.
+	 */
+	public long downloadChunked(String filename, String mode) throws RemoteException {
+
+		TransferHandle handle = server.openDownload(name, filename, mode);
+		try {
+			long received = 0;
+			while (received < handle.getLength()) {
+				received += server.readChunk(handle.getId(), received, handle.getChunkSize()).length();
+			}
+			return received;
+		} finally {
+			server.closeTransfer(handle.getId());
+		}
+	}
+
+	/**
+	 * Uploads new contents of a file the client owns
+	 */
+	public boolean upload(String filename, byte[] data) throws RemoteException {
+
+		FileContents contents = compressed ? FileContents.compressed(data, -1) : new FileContents(data);
+		return server.upload(name, filename, contents);
+	}
+
+	/**
+	 * Asks for ownership of a file, returns whether it was granted at once
+	 */
+	public boolean requestOwnership(String filename) throws RemoteException {
+
+		return server.requestOwnership(name, filename);
+	}
+
+	/**
+	 * Getter for the number of invalidations received
+	 */
+	public int getInvalidations() {
+
+		return invalidations.get();
+	}
+
+	/**
+	 * Stops the client, it can no longer be called back
+	 */
+	public void close() throws RemoteException {
+
+		uploads.shutdown();
+		unexportObject(this, true);
+	}
+
+	@Override
+	public boolean invalidate(String filename) {
+
+		invalidations.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public boolean writeback(String filename) {
+
+		byte[] data = owned.remove(filename);
+		if (data == null) {
+			return false;		//nothing to write back, the server asks again
+		}
+		uploads.execute(() -> {
+			try {
+				upload(filename, data);
+			} catch (RemoteException e) {
+				System.err.println("Writeback of " + filename + " by " + name + " failed: " + e);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public boolean ownershipGranted(String filename) {
+
+		return true;
+	}
+
+	@Override
+	public boolean rangeGranted(String filename, long offset, long length) {
+
+		return false;		//never locks ranges, the server unlocks it
+	}
+}
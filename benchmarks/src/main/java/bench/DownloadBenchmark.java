@@ -0,0 +1,48 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Latency of downloading a file in "r" and "w" mode. Files larger than 
+ * the server holds in memory are downloaded in chunks, one at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DownloadBenchmark {
+
+	@Param({"1024", "1048576", "67108864", "1073741824"})
+	long size;
+
+	@Param({"r", "w"})
+	String mode;
+
+	private Fixture fixture;
+	private String file;
+
+	@Setup
+	public void setUp() throws Exception {
+
+		fixture = Fixture.start();
+		fixture.addClient("reader");
+		file = fixture.createFile(size);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+
+		fixture.close();
+	}
+
+	//the client keeps ownership between "w" downloads, so neither mode calls anyone back
+	@Benchmark
+	public long download() throws Exception {
+
+		return fixture.download("reader", file, mode);
+	}
+}
@@ -0,0 +1,56 @@
+package bench;
+
+/**
+ * A file server running in the benchmark's process, reached over RMI
+ * like a remote one, and headless clients it can call back.
+ *
+ * The server is in the unnamed package, which named packages cannot
+ * refer to and which JMH does not allow benchmarks in, so the fixture
+ * is implemented by BenchFixture next to the server and loaded by name.
+ */
+public interface Fixture extends AutoCloseable {
+
+	/**
+	 * Creates a file of text of the given size for the server to serve,
+	 * returns its name
+	 */
+	String createFile(long size) throws Exception;
+
+	/**
+	 * Adds a headless client with the given name that the server can 
+	 * call back. It answers a writeback by uploading what it last 
+	 * downloaded in "w" mode.
+	 */
+	void addClient(String name) throws Exception;
+
+	/**
+	 * Downloads a file in "r" or "w" mode as the given client, in chunks
+	 * if it is too large to be held in the server's memory. Returns the 
+	 * number of bytes received.
+	 */
+	long download(String client, String filename, String mode) throws Exception;
+
+	/**
+	 * Asks for ownership of a file, returns whether it was granted at once
+	 */
+	boolean requestOwnership(String client, String filename) throws Exception;
+
+	/**
+	 * Uploads new contents of a file the client owns
+	 */
+	boolean upload(String client, String filename, byte[] data) throws Exception;
+
+	/**
+	 * Getter for the number of invalidations the client was sent
+	 */
+	int getInvalidations(String client);
+
+	/**
+	 * Starts a server on the port given by the dfs.bench.port system 
+	 * property, 23460 by default
+	 */
+	static Fixture start() throws Exception {
+
+		return (Fixture) Class.forName("BenchFixture").getDeclaredConstructor().newInstance();
+	}
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Latency of handing ownership of a file from one writer to another. 
+ * Two clients take turns downloading the file in "w" mode, each 
+ * download waits in addWriter while the server calls the owner back 
+ * with writeback and the owner uploads the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HandoffBenchmark {
+
+	@Param({"1024", "1048576"})
+	long size;
+
+	private Fixture fixture;
+	private String file;
+	private String next;
+
+	@Setup
+	public void setUp() throws Exception {
+
+		fixture = Fixture.start();
+		fixture.addClient("writer-a");
+		fixture.addClient("writer-b");
+		file = fixture.createFile(size);
+		fixture.download("writer-a", file, "w");
+		next = "writer-b";
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+
+		fixture.close();
+	}
+
+	@Benchmark
+	public long handoff() throws Exception {
+
+		long received = fixture.download(next, file, "w");
+		next = next.equals("writer-a") ? "writer-b" : "writer-a";
+		return received;
+	}
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time an upload takes to invalidate the copies of N readers. Before
+ * each operation the writer takes ownership and every reader downloads
+ * the file, the operation is the upload that calls them all back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class InvalidationBenchmark {
+
+	@Param({"1", "8", "64"})
+	int readers;
+
+	private Fixture fixture;
+	private String file;
+	private byte[] data;
+
+	@Setup
+	public void setUp() throws Exception {
+
+		fixture = Fixture.start();
+		fixture.addClient("writer");
+		for (int i = 0; i < readers; i++) {
+			fixture.addClient("reader-" + i);
+		}
+		file = fixture.createFile(1024);
+		data = new byte[1024];
+	}
+
+	@Setup(Level.Invocation)
+	public void register() throws Exception {
+
+		fixture.requestOwnership("writer", file);
+		for (int i = 0; i < readers; i++) {
+			fixture.download("reader-" + i, file, "r");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+
+		fixture.close();
+	}
+
+	@Benchmark
+	public boolean invalidate() throws Exception {
+
+		return fixture.upload("writer", file, data);
+	}
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of uploading a file. An upload gives up ownership, so each
+ * operation asks for ownership again before uploading, which the server
+ * grants at once since nobody else wants the file. Bytes per second are
+ * the size times the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UploadBenchmark {
+
+	@Param({"1024", "1048576", "16777216"})
+	long size;
+
+	private Fixture fixture;
+	private String file;
+	private byte[] data;
+
+	@Setup
+	public void setUp() throws Exception {
+
+		fixture = Fixture.start();
+		fixture.addClient("writer");
+		file = fixture.createFile(size);
+		fixture.download("writer", file, "w");
+		data = Files.readAllBytes(Paths.get("tmp", file));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+
+		fixture.close();
+	}
+
+	@Benchmark
+	public boolean upload() throws Exception {
+
+		fixture.requestOwnership("writer", file);
+		return fixture.upload("writer", file, data);
+	}
+}